@@ -0,0 +1,295 @@
+package com.insightly;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * Exports whole entity collections to gzip compressed NDJSON files, one record per line, with resumable checkpoints.
+ * </p>
+ * <p>
+ * <p>
+ * Each entity is exported by its own task, so all entities are fetched in parallel. Records are paged with a
+ * {@link KeysetPager} and copied from the response text to the file without being decoded, so memory use is bounded
+ * by one page per entity however large the account is.
+ * </p>
+ * <p>
+ * <p>
+ * Every few pages the current gzip member is finished, the file is synced, and the ID of the last exported record
+ * and the length of the file are saved next to it, in {@code <entity>.checkpoint}. Running the export again into
+ * the same directory, after a crash or a failed request, cuts each file back to its last checkpoint and continues
+ * with the following records. Entities exported completely are skipped. The files are valid gzip streams of
+ * concatenated members, which {@link java.util.zip.GZIPInputStream} and {@code zcat} read as one.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Map<InsightlyEntity, Long> counts = new AccountExport(i, Paths.get("export")).run(executor);
+ * }
+ * </pre>
+ */
+public class AccountExport {
+
+    /**
+     * Entities exported unless {@link #entities(Set)} says otherwise
+     */
+    public static final Set<InsightlyEntity> DEFAULT_ENTITIES = Collections.unmodifiableSet(EnumSet.of(
+            InsightlyEntity.CONTACTS,
+            InsightlyEntity.ORGANISATIONS,
+            InsightlyEntity.OPPORTUNITIES,
+            InsightlyEntity.PROJECTS,
+            InsightlyEntity.TASKS,
+            InsightlyEntity.NOTES,
+            InsightlyEntity.EVENTS));
+
+    public static final long DEFAULT_PAGE_SIZE = 500;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 20;
+
+    /**
+     * @param insightly client the records are read with
+     * @param directory directory the files are written to; it is created if missing
+     */
+    public AccountExport(Insightly insightly, Path directory) {
+        this.insightly = insightly;
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the entities to export
+     */
+    public AccountExport entities(Set<InsightlyEntity> entities) {
+        if (entities.isEmpty()) {
+            throw new IllegalArgumentException("No entities to export");
+        }
+        this.entities = EnumSet.copyOf(entities);
+        return this;
+    }
+
+    /**
+     * Sets the number of records requested per page
+     */
+    public AccountExport pageSize(long pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of pages written between checkpoints. Each checkpoint syncs the file, so a shorter interval
+     * loses less work in a crash but writes more slowly and compresses slightly worse.
+     */
+    public AccountExport checkpointInterval(int pages) {
+        if (pages <= 0) {
+            throw new IllegalArgumentException("checkpoint interval must be positive, was " + pages);
+        }
+        this.checkpointInterval = pages;
+        return this;
+    }
+
+    /**
+     * File the records of an entity are written to, {@code <entity>.ndjson.gz}
+     */
+    public Path getFile(InsightlyEntity entity) {
+        return directory.resolve(entity.name().toLowerCase(Locale.ROOT) + ".ndjson.gz");
+    }
+
+    /**
+     * Exports all entities, continuing from the checkpoints of an earlier run
+     *
+     * @param executor executor running one task per entity
+     * @return number of records in each file, including those exported by earlier runs
+     * @throws InsightlyException if an entity could not be exported; the other entities are still exported,
+     *                            and running the export again resumes the failed ones
+     */
+    public Map<InsightlyEntity, Long> run(ExecutorService executor) throws InsightlyException {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot create " + directory, ex);
+        }
+        Map<InsightlyEntity, Future<Long>> futures = new EnumMap<InsightlyEntity, Future<Long>>(InsightlyEntity.class);
+        for (final InsightlyEntity entity : entities) {
+            futures.put(entity, executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws InsightlyException {
+                    return export(entity);
+                }
+            }));
+        }
+
+        Map<InsightlyEntity, Long> counts = new EnumMap<InsightlyEntity, Long>(InsightlyEntity.class);
+        List<InsightlyException> failures = new ArrayList<InsightlyException>();
+        try {
+            for (Map.Entry<InsightlyEntity, Future<Long>> entry : futures.entrySet()) {
+                try {
+                    counts.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ex) {
+                    failures.add(ex.getCause() instanceof InsightlyException
+                            ? (InsightlyException) ex.getCause()
+                            : new InsightlyException("Export of " + entry.getKey() + " failed", ex.getCause()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (Future<Long> future : futures.values()) {
+                future.cancel(true);
+            }
+            throw new InsightlyException("Interrupted while exporting", ex);
+        }
+        if (!failures.isEmpty()) {
+            InsightlyException first = failures.get(0);
+            for (int i = 1; i < failures.size(); i++) {
+                first.addSuppressed(failures.get(i));
+            }
+            throw first;
+        }
+        return counts;
+    }
+
+    private long export(InsightlyEntity entity) throws InsightlyException {
+        Path file = getFile(entity);
+        Checkpoint checkpoint = readCheckpoint(entity);
+        if (checkpoint.complete) {
+            return checkpoint.count;
+        }
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                // anything past the checkpoint is an unfinished gzip member of a crashed run
+                channel.truncate(checkpoint.length);
+                channel.position(checkpoint.length);
+                KeysetPager pager = insightly.keysetPager(InsightlyQuery.from(entity), pageSize, checkpoint.lastSeenId);
+                long count = checkpoint.count;
+                int pages = 0;
+                Writer out = member(channel);
+                while (pager.hasNext()) {
+                    LazyRecords records = pager.nextLazy();
+                    for (LazyRecord record : records) {
+                        record.writeLine(out);
+                    }
+                    count += records.size();
+                    if (++pages % checkpointInterval == 0 || !pager.hasNext()) {
+                        out.close();
+                        channel.force(false);
+                        writeCheckpoint(entity, new Checkpoint(pager.getLastSeenId(), channel.position(), count, !pager.hasNext()));
+                        if (pager.hasNext()) {
+                            out = member(channel);
+                        }
+                    }
+                }
+                return count;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot write " + file, ex);
+        }
+    }
+
+    /**
+     * Starts a gzip member at the current position of the channel; closing the writer finishes the member
+     * but leaves the channel open
+     */
+    private static Writer member(FileChannel channel) throws IOException {
+        OutputStream file = new FilterOutputStream(Channels.newOutputStream(channel)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(file, BUFFER_SIZE), UTF_8), BUFFER_SIZE);
+    }
+
+    private Checkpoint readCheckpoint(InsightlyEntity entity) throws InsightlyException {
+        Path path = checkpointFile(entity);
+        try {
+            if (!Files.exists(path)) {
+                return new Checkpoint(0, 0, 0, false);
+            }
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(path), UTF_8));
+            return new Checkpoint(json.getLong("lastSeenId"), json.getLong("length"),
+                    json.getLong("count"), json.getBoolean("complete"));
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot read " + path, ex);
+        }
+    }
+
+    private void writeCheckpoint(InsightlyEntity entity, Checkpoint checkpoint) throws IOException {
+        JSONObject json = new JSONObject()
+                .put("lastSeenId", checkpoint.lastSeenId)
+                .put("length", checkpoint.length)
+                .put("count", checkpoint.count)
+                .put("complete", checkpoint.complete);
+        Path path = checkpointFile(entity);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            channel.write(UTF_8.encode(json.toString()));
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path checkpointFile(InsightlyEntity entity) {
+        return directory.resolve(entity.name().toLowerCase(Locale.ROOT) + ".checkpoint");
+    }
+
+    private static final class Checkpoint {
+        Checkpoint(long lastSeenId, long length, long count, boolean complete) {
+            this.lastSeenId = lastSeenId;
+            this.length = length;
+            this.count = count;
+            this.complete = complete;
+        }
+
+        final long lastSeenId;
+        final long length;
+        final long count;
+        final boolean complete;
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Insightly insightly;
+    private final Path directory;
+    private Set<InsightlyEntity> entities = DEFAULT_ENTITIES;
+    private long pageSize = DEFAULT_PAGE_SIZE;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+}
@@ -0,0 +1,225 @@
+package com.insightly;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Interceptor that caps the number of in-flight requests and adapts the cap to the observed latency and errors.
+ * </p>
+ * <p>
+ * <p>
+ * The limiter tracks the lowest recent response time as the no-load latency. After every successful request
+ * the limit moves towards {@code limit * min(1, tolerance * noLoadLatency / latency) + sqrt(limit)}:
+ * it grows while latency stays close to the no-load latency and shrinks once requests start queueing on the server.
+ * Rate limiting (429), server errors and requests without a response (timeouts, connection failures)
+ * cut the limit multiplicatively, as in AIMD.
+ * </p>
+ * <p>
+ * <p>
+ * Requests beyond the limit block until a slot frees up, or fail with an {@link InsightlyException}
+ * once the configured maximum wait or the request's deadline has passed.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+ * Insightly i = new Insightly(apikey).addInterceptor(limiter);
+ * }
+ * </pre>
+ */
+public class AdaptiveConcurrencyLimiter implements InsightlyInterceptor {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit starting concurrency limit
+     * @param minLimit     limit never drops below this value
+     * @param maxLimit     limit never grows beyond this value
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits: initial " + initialLimit
+                    + ", min " + minLimit + ", max " + maxLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Sets how much slower than the no-load latency a request may be before the limit shrinks (default 2.0)
+     */
+    public AdaptiveConcurrencyLimiter tolerance(double tolerance) {
+        if (tolerance < 1.0) {
+            throw new IllegalArgumentException("tolerance must be at least 1.0, was " + tolerance);
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Sets the factor the limit is multiplied by after a failed or rate limited request (default 0.9)
+     */
+    public AdaptiveConcurrencyLimiter backoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1, was " + backoffRatio);
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Sets how long a request may wait for a free slot before failing (default: wait indefinitely)
+     *
+     * @param maxWait maximum wait, or 0 to wait indefinitely
+     */
+    public AdaptiveConcurrencyLimiter maxWait(long maxWait, TimeUnit unit) {
+        if (maxWait < 0) {
+            throw new IllegalArgumentException("maxWait must not be negative, was " + maxWait);
+        }
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        return this;
+    }
+
+    @Override
+    public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+        int inFlightAtStart = acquire(request.effectiveDeadline());
+        long start = System.nanoTime();
+        boolean dropped = true;
+        try {
+            String response = chain.proceed(request);
+            dropped = false;
+            return response;
+        } catch (InsightlyException ex) {
+            // client errors (400, 404, ...) say nothing about server load
+            dropped = !ex.hasResponse() || ex.isRateLimited() || ex.isServerError();
+            throw ex;
+        } finally {
+            release(System.nanoTime() - start, inFlightAtStart, dropped);
+        }
+    }
+
+    /**
+     * Current concurrency limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests currently in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a free slot and takes it
+     *
+     * @param deadline deadline of the request, or {@code null}
+     * @return number of requests in flight including this one
+     */
+    int acquire(Deadline deadline) throws InsightlyException {
+        lock.lock();
+        try {
+            long maxWaitEnd = System.nanoTime() + maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                long nanos = Long.MAX_VALUE;
+                if (deadline != null) {
+                    nanos = deadline.remaining(TimeUnit.NANOSECONDS);
+                    if (nanos <= 0) {
+                        throw InsightlyRequest.deadlineExceeded(null);
+                    }
+                }
+                if (maxWaitNanos > 0) {
+                    long remaining = maxWaitEnd - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new InsightlyException("Concurrency limit of " + (int) limit + " reached");
+                    }
+                    nanos = Math.min(nanos, remaining);
+                }
+                if (nanos == Long.MAX_VALUE) {
+                    available.await();
+                } else {
+                    available.awaitNanos(nanos);
+                }
+            }
+            return ++inFlight;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while waiting for a request slot", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot and feeds the outcome of the request into the limit
+     */
+    void release(long latencyNanos, int inFlightAtStart, boolean dropped) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (dropped) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else {
+                latencyNanos = Math.max(1, latencyNanos);
+                updateNoLoadLatency(latencyNanos);
+                // only grow when the limit was actually being used, otherwise an idle client would inflate it
+                double gradient = Math.max(0.5, Math.min(1.0, tolerance * noLoadLatencyNanos / latencyNanos));
+                double headroom = (inFlightAtStart * 2 >= limit) ? Math.sqrt(limit) : 0;
+                double target = limit * gradient + headroom;
+                limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateNoLoadLatency(long latencyNanos) {
+        // keep the minimum of the current window; start a new window periodically so the
+        // baseline follows lasting changes in server latency
+        if (++samples >= WINDOW) {
+            noLoadLatencyNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            samples = 0;
+        }
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        noLoadLatencyNanos = Math.min(noLoadLatencyNanos, latencyNanos);
+    }
+
+    private static final double SMOOTHING = 0.2;
+    private static final int WINDOW = 500;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final int minLimit;
+    private final int maxLimit;
+    private double tolerance = 2.0;
+    private double backoffRatio = 0.9;
+    private long maxWaitNanos;
+    private double limit;
+    private int inFlight;
+    private long noLoadLatencyNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int samples;
+}
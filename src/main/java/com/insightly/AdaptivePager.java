@@ -0,0 +1,138 @@
+package com.insightly;
+
+/**
+ * <p>
+ * A {@link KeysetPager} that tunes {@code $top} after every page.
+ * </p>
+ * <p>
+ * <p>
+ * The pager measures the response time and size of each page and estimates the cost of a single record.
+ * Fast pages let the page size grow (at most doubling per page) towards the size expected to take the target response time;
+ * slow pages shrink it proportionally. A page that fails with a server error or without a response
+ * (e.g. a timeout) is retried with half the page size, until the minimum page size is reached.
+ * </p>
+ * <p>
+ * <p>
+ * Wide entities, such as opportunities with many custom fields, therefore settle on smaller pages than narrow ones
+ * without the caller having to choose a fixed {@code top} value.
+ * </p>
+ */
+public class AdaptivePager extends KeysetPager {
+
+    public static final long DEFAULT_MIN_PAGE_SIZE = 10;
+    public static final long DEFAULT_MAX_PAGE_SIZE = 500;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * @param insightly           client used to fetch pages
+     * @param query               base query; must not specify ordering, top or skip
+     * @param targetLatencyMillis desired response time per page
+     * @param minPageSize         smallest page size to use
+     * @param maxPageSize         largest page size to use
+     */
+    AdaptivePager(Insightly insightly, InsightlyQuery query, long targetLatencyMillis,
+                  long minPageSize, long maxPageSize) {
+        super(insightly, query, Math.max(minPageSize, Math.min(maxPageSize, INITIAL_PAGE_SIZE)), 0);
+        if (targetLatencyMillis <= 0) {
+            throw new IllegalArgumentException("targetLatencyMillis must be positive, was " + targetLatencyMillis);
+        }
+        if (minPageSize <= 0 || maxPageSize < minPageSize) {
+            throw new IllegalArgumentException("Invalid page size bounds " + minPageSize + " - " + maxPageSize);
+        }
+        this.targetNanos = targetLatencyMillis * 1000000L;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Caps the page size so that the expected response body stays below the given number of characters
+     *
+     * @param maxPageBytes maximum response size, or 0 for no limit
+     */
+    public AdaptivePager maxPageBytes(long maxPageBytes) {
+        if (maxPageBytes < 0) {
+            throw new IllegalArgumentException("maxPageBytes must not be negative, was " + maxPageBytes);
+        }
+        this.maxPageBytes = maxPageBytes;
+        return this;
+    }
+
+    /**
+     * Sets how often a failed page is retried with a smaller page size before the failure is rethrown
+     */
+    public AdaptivePager maxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative, was " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Latency of the last successful page in milliseconds
+     */
+    public long getLastLatencyMillis() {
+        return lastLatencyNanos / 1000000L;
+    }
+
+    @Override
+    String fetch() throws InsightlyException {
+        int failures = 0;
+        while (true) {
+            long pageSize = getPageSize();
+            long start = System.nanoTime();
+            try {
+                String body = super.fetch();
+                lastLatencyNanos = System.nanoTime() - start;
+                lastPageBytes = body.length();
+                return body;
+            } catch (InsightlyException ex) {
+                if (!isRetryable(ex) || pageSize <= minPageSize || ++failures > maxRetries) {
+                    throw ex;
+                }
+                setPageSize(Math.max(minPageSize, pageSize / 2));
+            }
+        }
+    }
+
+    @Override
+    void advance(int count, long lastId) {
+        super.advance(count, lastId);
+        adjust(getPageSize(), count, lastLatencyNanos);
+    }
+
+    private void adjust(long pageSize, int records, long elapsedNanos) {
+        if (records == 0) {
+            return;
+        }
+        long next;
+        if (elapsedNanos > targetNanos) {
+            next = (long) (pageSize * ((double) targetNanos / elapsedNanos));
+        } else if (records < pageSize) {
+            // a short (last) page says nothing about how a full page would perform
+            next = pageSize;
+        } else {
+            double nanosPerRecord = (double) elapsedNanos / records;
+            next = Math.min(pageSize * 2, (long) (targetNanos / nanosPerRecord));
+        }
+        if (maxPageBytes > 0) {
+            long bytesPerRecord = Math.max(1, lastPageBytes / records);
+            next = Math.min(next, maxPageBytes / bytesPerRecord);
+        }
+        setPageSize(Math.max(minPageSize, Math.min(maxPageSize, next)));
+    }
+
+    private static boolean isRetryable(InsightlyException ex) {
+        return !ex.hasResponse() || ex.isServerError();
+    }
+
+    private static final long INITIAL_PAGE_SIZE = 100;
+
+    private final long targetNanos;
+    private final long minPageSize;
+    private final long maxPageSize;
+    private long maxPageBytes;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long lastLatencyNanos;
+    private long lastPageBytes;
+}
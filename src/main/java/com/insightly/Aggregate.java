@@ -0,0 +1,50 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A record together with the child collections loaded by {@link Hydrator}.
+ * </p>
+ */
+public class Aggregate {
+
+    Aggregate(JSONObject record, Map<Hydrator.Child, JSONArray> children) {
+        this.record = record;
+        this.children = Collections.unmodifiableMap(new EnumMap<Hydrator.Child, JSONArray>(children));
+    }
+
+    public JSONObject getRecord() {
+        return record;
+    }
+
+    /**
+     * Returns the loaded child collection
+     *
+     * @throws IllegalArgumentException if the collection was not requested
+     */
+    public JSONArray get(Hydrator.Child child) {
+        JSONArray records = children.get(child);
+        if (records == null) {
+            throw new IllegalArgumentException(child + " was not loaded");
+        }
+        return records;
+    }
+
+    public boolean has(Hydrator.Child child) {
+        return children.containsKey(child);
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregate[record=" + record + ", children=" + children.keySet() + "]";
+    }
+
+    private final JSONObject record;
+    private final Map<Hydrator.Child, JSONArray> children;
+}
@@ -0,0 +1,701 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>
+ * Imports records from NDJSON or CSV files, skipping records that already exist and writing with bounded parallelism.
+ * </p>
+ * <p>
+ * <p>
+ * The input is streamed, one batch of records at a time, so files of any size can be imported. Columns of a CSV file,
+ * or keys of NDJSON records, are renamed to entity fields with {@link #map(String, String)}; CSV values are converted
+ * to numbers and booleans according to the field types of the {@link InsightlyEntity}.
+ * </p>
+ * <p>
+ * <p>
+ * Contacts and leads are deduplicated by email address and organisations by website domain. For each batch, the
+ * addresses not seen before are looked up on the server concurrently; records whose address already exists, on the
+ * server or earlier in the input, are skipped. Importing the same file twice therefore creates no duplicates.
+ * The API looks up one address per request, so the lookups are batched by running them in parallel and caching their
+ * results for the rest of the import.
+ * </p>
+ * <p>
+ * <p>
+ * At most {@link #parallelism(int)} lookups and writes are in flight at any time. Records that cannot be read, whose
+ * duplicate lookup fails, or that are refused by the server are written to the {@link #errorFile(Path) error file}
+ * as NDJSON objects with the input {@code line}, the {@code input} record and the {@code error}; the import goes on.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * ImportResult result = new BulkImport(i, InsightlyEntity.LEADS)
+ *         .map("First name", "FIRST_NAME")
+ *         .map("Last name", "LAST_NAME")
+ *         .mapEmail("E-mail")
+ *         .errorFile(Paths.get("leads.rejected.ndjson"))
+ *         .importCsv(Paths.get("leads.csv"), executor);
+ * }
+ * </pre>
+ */
+public class BulkImport {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * @param insightly client the records are written with
+     * @param entity    entity the records are imported into
+     */
+    public BulkImport(Insightly insightly, InsightlyEntity entity) {
+        this.insightly = insightly;
+        this.entity = entity;
+        this.dedup = dedupParam(entity) != null;
+    }
+
+    /**
+     * Maps an input column to an entity field. Once any column is mapped, unmapped columns are ignored;
+     * without mappings, columns are imported under their own names.
+     *
+     * @param column name of the CSV column or NDJSON key
+     * @param field  name of the entity field
+     */
+    public BulkImport map(String column, String field) {
+        mappings.put(column, new Target(field, null));
+        return this;
+    }
+
+    /**
+     * Maps an input column holding an email address: {@code EMAIL_ADDRESS} of a lead,
+     * or an {@code EMAIL} entry of {@code CONTACTINFOS} otherwise
+     */
+    public BulkImport mapEmail(String column) {
+        mappings.put(column, entity == InsightlyEntity.LEADS ? new Target("EMAIL_ADDRESS", null) : new Target(null, "EMAIL"));
+        return this;
+    }
+
+    /**
+     * Maps an input column holding a website: {@code WEBSITE_URL} of a lead,
+     * or a {@code WEBSITE} entry of {@code CONTACTINFOS} otherwise
+     */
+    public BulkImport mapWebsite(String column) {
+        mappings.put(column, entity == InsightlyEntity.LEADS ? new Target("WEBSITE_URL", null) : new Target(null, "WEBSITE"));
+        return this;
+    }
+
+    /**
+     * Sets whether records whose email address or domain already exists are skipped.
+     * On by default for contacts, leads and organisations.
+     *
+     * @throws IllegalArgumentException if the entity cannot be looked up by email or domain
+     */
+    public BulkImport dedup(boolean dedup) {
+        if (dedup && dedupParam(entity) == null) {
+            throw new IllegalArgumentException(entity + " cannot be deduplicated by email or domain");
+        }
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+     * Sets the number of records read and looked up together
+     */
+    public BulkImport batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight
+     */
+    public BulkImport parallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the file rejected records are written to; it is replaced if it exists
+     */
+    public BulkImport errorFile(Path errorFile) {
+        this.errorFile = errorFile;
+        return this;
+    }
+
+    /**
+     * Imports a file with one JSON object per line, gzip compressed if its name ends with {@code .gz}
+     *
+     * @param input    file to import
+     * @param executor executor running the lookups and writes
+     */
+    public ImportResult importNdjson(Path input, ExecutorService executor) throws InsightlyException {
+        try {
+            final BufferedReader reader = new BufferedReader(open(input), BUFFER_SIZE);
+            try {
+                return run(new Source() {
+                    @Override
+                    public Row next() throws IOException {
+                        String text;
+                        do {
+                            text = reader.readLine();
+                            if (text == null) {
+                                return null;
+                            }
+                            line++;
+                        } while (text.trim().isEmpty());
+                        try {
+                            return new Row(line, new JSONObject(text), null);
+                        } catch (JSONException ex) {
+                            return new Row(line, text, ex.getMessage());
+                        }
+                    }
+
+                    private long line;
+                }, false, executor);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot read " + input, ex);
+        }
+    }
+
+    /**
+     * Imports a CSV file with a header row, gzip compressed if its name ends with {@code .gz}.
+     * Fields are separated by commas and may be quoted with double quotes.
+     *
+     * @param input    file to import
+     * @param executor executor running the lookups and writes
+     */
+    public ImportResult importCsv(Path input, ExecutorService executor) throws InsightlyException {
+        try {
+            final CsvReader reader = new CsvReader(open(input));
+            try {
+                final List<String> header = reader.next();
+                if (header == null) {
+                    return new ImportResult(0, 0, 0);
+                }
+                if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+                    header.set(0, header.get(0).substring(1));
+                }
+                return run(new Source() {
+                    @Override
+                    public Row next() throws IOException {
+                        List<String> values;
+                        do {
+                            values = reader.next();
+                            if (values == null) {
+                                return null;
+                            }
+                        } while (values.size() == 1 && values.get(0).isEmpty());
+                        JSONObject row = new JSONObject();
+                        for (int i = 0; i < header.size() && i < values.size(); i++) {
+                            row.put(header.get(i), values.get(i));
+                        }
+                        return new Row(reader.getRowLine(), row, null);
+                    }
+                }, true, executor);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot read " + input, ex);
+        }
+    }
+
+    private ImportResult run(Source source, boolean text, ExecutorService executor) throws InsightlyException, IOException {
+        Run run = new Run(executor, text);
+        try {
+            List<Row> batch = new ArrayList<Row>(batchSize);
+            Row row;
+            while ((row = source.next()) != null) {
+                batch.add(row);
+                if (batch.size() == batchSize) {
+                    run.process(batch);
+                    batch = new ArrayList<Row>(batchSize);
+                }
+            }
+            run.process(batch);
+            run.awaitWrites();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while importing", ex);
+        } finally {
+            run.close();
+        }
+        return new ImportResult(run.imported.get(), run.duplicates.get(), run.rejected.get());
+    }
+
+    /**
+     * State of one import
+     */
+    private final class Run {
+        Run(ExecutorService executor, boolean text) throws IOException {
+            this.executor = executor;
+            this.text = text;
+            this.permits = new Semaphore(parallelism);
+            this.errors = errorFile != null ? Files.newBufferedWriter(errorFile, UTF_8) : null;
+        }
+
+        void process(List<Row> batch) throws InterruptedException {
+            List<JSONObject> records = new ArrayList<JSONObject>(batch.size());
+            List<String> keys = new ArrayList<String>(batch.size());
+            Set<String> lookups = new LinkedHashSet<String>();
+            for (Row row : batch) {
+                JSONObject record = null;
+                String key = null;
+                if (row.error == null) {
+                    try {
+                        record = mapRecord((JSONObject) row.input, text);
+                        key = dedup ? dedupKey(record) : null;
+                    } catch (IllegalArgumentException ex) {
+                        row.error = ex.getMessage();
+                    }
+                }
+                records.add(record);
+                keys.add(key);
+                if (key != null && !known.contains(key)) {
+                    lookups.add(key);
+                }
+            }
+            Map<String, String> failedLookups = lookUp(lookups);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Row row = batch.get(i);
+                String key = keys.get(i);
+                if (row.error == null && key != null && failedLookups.containsKey(key)) {
+                    row.error = failedLookups.get(key);
+                }
+                if (row.error != null) {
+                    reject(row, row.error);
+                } else if (key != null && !known.add(key)) {
+                    duplicates.incrementAndGet();
+                } else {
+                    write(row, records.get(i), key);
+                }
+            }
+        }
+
+        /**
+         * Looks up the keys on the server and adds the existing ones to {@code known}
+         *
+         * @return the error of each key whose lookup failed; its records are rejected, as they may be duplicates
+         */
+        private Map<String, String> lookUp(Set<String> lookups) throws InterruptedException {
+            final String param = dedupParam(entity);
+            Map<String, Future<Boolean>> futures = new LinkedHashMap<String, Future<Boolean>>();
+            Map<String, String> failed = new HashMap<String, String>();
+            for (final String key : lookups) {
+                permits.acquire();
+                try {
+                    futures.put(key, executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws InsightlyException {
+                            try {
+                                InsightlyQuery query = InsightlyQuery.from(entity).top(1);
+                                query = param.equals("email") ? query.email(key) : query.domain(key);
+                                return insightly.query(query.compile()).length() > 0;
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    }));
+                } catch (RejectedExecutionException ex) {
+                    permits.release();
+                    throw ex;
+                }
+            }
+            for (Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+                try {
+                    if (entry.getValue().get()) {
+                        known.add(entry.getKey());
+                    }
+                } catch (ExecutionException ex) {
+                    // the import goes on; only the records with this key are rejected
+                    failed.put(entry.getKey(), "Duplicate lookup failed: " + ex.getCause().getMessage());
+                }
+            }
+            return failed;
+        }
+
+        private void write(final Row row, final JSONObject record, final String key) throws InterruptedException {
+            permits.acquire();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            insightly.write(entity, record);
+                            imported.incrementAndGet();
+                        } catch (InsightlyException ex) {
+                            fail(ex);
+                        } catch (RuntimeException ex) {
+                            fail(ex);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+
+                    private void fail(Exception ex) {
+                        if (key != null) {
+                            // a later record with the same key may still be imported
+                            known.remove(key);
+                        }
+                        reject(row, ex.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+
+        private void reject(Row row, String error) {
+            rejected.incrementAndGet();
+            if (errors == null) {
+                return;
+            }
+            JSONObject entry = new JSONObject()
+                    .put("line", row.line)
+                    .put("input", row.input)
+                    .put("error", error != null ? error : JSONObject.NULL);
+            errorsLock.lock();
+            try {
+                errors.write(entry.toString());
+                errors.write('\n');
+            } catch (IOException ex) {
+                errorFileFailure = ex;
+            } finally {
+                errorsLock.unlock();
+            }
+        }
+
+        void awaitWrites() throws InterruptedException, IOException {
+            permits.acquire(parallelism);
+            permits.release(parallelism);
+            if (errorFileFailure != null) {
+                throw errorFileFailure;
+            }
+        }
+
+        void close() throws IOException {
+            // let writes still in flight after a failure finish, so their rejects reach the error file
+            permits.acquireUninterruptibly(parallelism);
+            permits.release(parallelism);
+            if (errors != null) {
+                errors.close();
+            }
+        }
+
+        private final ExecutorService executor;
+        private final boolean text;
+        private final Semaphore permits;
+        private final Writer errors;
+        private final ReentrantLock errorsLock = new ReentrantLock();
+        private volatile IOException errorFileFailure;
+        // keys existing on the server or claimed by a record of this import
+        private final Set<String> known = ConcurrentHashMap.newKeySet();
+        final AtomicLong imported = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+    }
+
+    /**
+     * Renames the input columns to entity fields
+     *
+     * @param text whether the values are CSV text to be converted to the field types
+     */
+    private JSONObject mapRecord(JSONObject input, boolean text) {
+        if (mappings.isEmpty()) {
+            if (!text) {
+                return input;
+            }
+            JSONObject record = new JSONObject();
+            for (String column : input.keySet()) {
+                put(record, new Target(column, null), input.get(column), true);
+            }
+            return record;
+        }
+        JSONObject record = new JSONObject();
+        for (Map.Entry<String, Target> mapping : mappings.entrySet()) {
+            Object value = input.opt(mapping.getKey());
+            if (value != null && value != JSONObject.NULL) {
+                put(record, mapping.getValue(), value, text);
+            }
+        }
+        return record;
+    }
+
+    private void put(JSONObject record, Target target, Object value, boolean text) {
+        if (text && value.toString().isEmpty()) {
+            return;
+        }
+        if (target.contactInfoType != null) {
+            JSONArray infos = record.optJSONArray("CONTACTINFOS");
+            if (infos == null) {
+                infos = new JSONArray();
+                record.put("CONTACTINFOS", infos);
+            }
+            infos.put(new JSONObject()
+                    .put("TYPE", target.contactInfoType)
+                    .put("LABEL", "WORK")
+                    .put("DETAIL", value.toString()));
+            return;
+        }
+        record.put(target.field, text ? convert(target.field, value.toString()) : value);
+    }
+
+    private Object convert(String field, String value) {
+        InsightlyEntity.FieldType type = entity.hasField(field) ? entity.getFieldType(field) : InsightlyEntity.FieldType.STRING;
+        switch (type) {
+            case NUMBER:
+                try {
+                    return Long.parseLong(value.trim());
+                } catch (NumberFormatException ex) {
+                    try {
+                        return Double.parseDouble(value.trim());
+                    } catch (NumberFormatException notDouble) {
+                        throw new IllegalArgumentException(field + " is not a number: " + value);
+                    }
+                }
+            case BOOLEAN:
+                if (value.trim().equalsIgnoreCase("true")) {
+                    return Boolean.TRUE;
+                }
+                if (value.trim().equalsIgnoreCase("false")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException(field + " is not a boolean: " + value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Normalised email address or domain of a record, or {@code null} if it has none
+     */
+    private String dedupKey(JSONObject record) {
+        String value;
+        if (entity == InsightlyEntity.LEADS) {
+            value = record.optString("EMAIL_ADDRESS", null);
+        } else {
+            value = contactInfo(record, entity == InsightlyEntity.ORGANISATIONS ? "WEBSITE" : "EMAIL");
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        value = value.trim().toLowerCase(Locale.ROOT);
+        return entity == InsightlyEntity.ORGANISATIONS ? domain(value) : value;
+    }
+
+    private static String contactInfo(JSONObject record, String type) {
+        JSONArray infos = record.optJSONArray("CONTACTINFOS");
+        if (infos == null) {
+            return null;
+        }
+        for (int i = 0; i < infos.length(); i++) {
+            JSONObject info = infos.optJSONObject(i);
+            if (info != null && type.equals(info.optString("TYPE"))) {
+                return info.optString("DETAIL", null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Host name of a website, without scheme, port, path and leading {@code www.}
+     */
+    static String domain(String website) {
+        int start = website.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < website.length() && "/:?#".indexOf(website.charAt(end)) < 0) {
+            end++;
+        }
+        String host = website.substring(start, end);
+        return host.startsWith("www.") ? host.substring(4) : host;
+    }
+
+    private static String dedupParam(InsightlyEntity entity) {
+        if (entity == InsightlyEntity.CONTACTS || entity == InsightlyEntity.LEADS) {
+            return "email";
+        }
+        if (entity == InsightlyEntity.ORGANISATIONS) {
+            return "domain";
+        }
+        return null;
+    }
+
+    private static Reader open(Path input) throws IOException {
+        InputStream in = Files.newInputStream(input);
+        try {
+            if (input.getFileName().toString().endsWith(".gz")) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return new InputStreamReader(in, UTF_8);
+    }
+
+    private interface Source {
+        /**
+         * Next input record, or {@code null} at the end of the input
+         */
+        Row next() throws IOException;
+    }
+
+    private static final class Row {
+        Row(long line, Object input, String error) {
+            this.line = line;
+            this.input = input;
+            this.error = error;
+        }
+
+        final long line;
+        // the parsed JSON object, or the raw text if it could not be parsed
+        final Object input;
+        String error;
+    }
+
+    private static final class Target {
+        Target(String field, String contactInfoType) {
+            this.field = field;
+            this.contactInfoType = contactInfoType;
+        }
+
+        final String field;
+        final String contactInfoType;
+    }
+
+    /**
+     * Reads CSV rows as described in RFC 4180, allowing line breaks inside quoted fields
+     */
+    private static final class CsvReader {
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next row, or returns {@code null} at the end of the input
+         */
+        List<String> next() throws IOException {
+            int c = read();
+            if (c < 0) {
+                return null;
+            }
+            rowLine = line + (c == '\n' ? 0 : 1);
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0) {
+                        throw new IOException("Unterminated quoted field starting on line " + rowLine);
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.append((char) c);
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c < 0) {
+                    fields.add(field.toString());
+                    return fields;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        /**
+         * Line the last row read starts on, counting from 1
+         */
+        long getRowLine() {
+            return rowLine;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            char c = buffer[position++];
+            if (c == '\n') {
+                line++;
+            }
+            return c;
+        }
+
+        private final Reader in;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private long line;
+        private long rowLine;
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Insightly insightly;
+    private final InsightlyEntity entity;
+    private final Map<String, Target> mappings = new LinkedHashMap<String, Target>();
+    private boolean dedup;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private Path errorFile;
+}
@@ -0,0 +1,237 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Remembers a content hash of the last known server state of every record, so that unchanged records are not written again.
+ * </p>
+ * <p>
+ * <p>
+ * Records are canonicalised before hashing: object keys are sorted, numbers are normalised ({@code 1}, {@code 1.0}
+ * and {@code 1.00} are the same value) and fields maintained by the server, by default {@code DATE_CREATED_UTC}
+ * and {@code DATE_UPDATED_UTC}, are ignored. Two hashes are kept per record: that of the state returned by the
+ * server, and that of the last payload written, since the server may add fields to what was sent.
+ * A record is unchanged if its hash matches either.
+ * </p>
+ * <p>
+ * <p>
+ * Seed the tracker with records read from the server, then write through
+ * {@link Insightly#upsert(InsightlyEntity, JSONObject, ChangeTracker)}, which skips unchanged records
+ * and remembers the state of the ones it writes:
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * ChangeTracker tracker = new ChangeTracker();
+ * tracker.remember(InsightlyEntity.CONTACTS, i.getContacts());
+ * ...
+ * UpsertResult result = i.upsertAll(InsightlyEntity.CONTACTS, contacts, tracker);
+ * System.out.println(result.getSkippedCount() + " contacts unchanged");
+ * }
+ * </pre>
+ * <p>
+ * <p>
+ * The tracker keeps 16 bytes of hashes per record plus map overhead, and is safe to use from multiple threads.
+ * </p>
+ */
+public class ChangeTracker {
+
+    public static final Set<String> DEFAULT_IGNORED_FIELDS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("DATE_CREATED_UTC", "DATE_UPDATED_UTC")));
+
+    public ChangeTracker() {
+        this(DEFAULT_IGNORED_FIELDS);
+    }
+
+    /**
+     * @param ignoredFields top level fields left out of the hash, e.g. timestamps maintained by the server
+     */
+    public ChangeTracker(Set<String> ignoredFields) {
+        this.ignoredFields = Collections.unmodifiableSet(new HashSet<String>(ignoredFields));
+        for (InsightlyEntity entity : InsightlyEntity.values()) {
+            hashes.put(entity, new ConcurrentHashMap<Long, long[]>());
+        }
+    }
+
+    /**
+     * Records the server state of a record, e.g. one just read from the server
+     */
+    public void remember(InsightlyEntity entity, JSONObject record) {
+        long id = record.optLong(entity.getIdField(), 0);
+        if (id > 0) {
+            hashes.get(entity).put(id, new long[]{hash(record), 0});
+        }
+    }
+
+    /**
+     * Records the server state of every record in a list
+     */
+    public void remember(InsightlyEntity entity, JSONArray records) {
+        for (int i = 0; i < records.length(); i++) {
+            remember(entity, records.getJSONObject(i));
+        }
+    }
+
+    /**
+     * Forgets a record, e.g. after it was deleted, so that it is written unconditionally next time
+     */
+    public void forget(InsightlyEntity entity, long id) {
+        hashes.get(entity).remove(id);
+    }
+
+    public void clear() {
+        for (Map<Long, long[]> map : hashes.values()) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Whether the record has an ID and matches the remembered server state or last written payload
+     */
+    public boolean isUnchanged(InsightlyEntity entity, JSONObject record) {
+        long id = record.optLong(entity.getIdField(), 0);
+        if (id <= 0) {
+            return false;
+        }
+        long[] known = hashes.get(entity).get(id);
+        if (known == null) {
+            return false;
+        }
+        long hash = hash(record);
+        return hash == known[0] || (known[1] != 0 && hash == known[1]);
+    }
+
+    /**
+     * Number of records remembered for the entity
+     */
+    public int size(InsightlyEntity entity) {
+        return hashes.get(entity).size();
+    }
+
+    /**
+     * Records a successful write: the payload that was sent and the state the server returned
+     */
+    void written(InsightlyEntity entity, JSONObject payload, JSONObject response) {
+        long id = response != null ? response.optLong(entity.getIdField(), 0) : 0;
+        if (id <= 0) {
+            id = payload.optLong(entity.getIdField(), 0);
+        }
+        if (id <= 0) {
+            return;
+        }
+        long sent = hash(payload);
+        long state = response != null ? hash(response) : sent;
+        hashes.get(entity).put(id, new long[]{state, sent});
+    }
+
+    /**
+     * 64-bit hash of the canonical form of the record
+     */
+    long hash(JSONObject record) {
+        StringBuilder canonical = new StringBuilder(256);
+        canonicalize(record, ignoredFields, canonical);
+        byte[] digest = sha256().digest(canonical.toString().getBytes(UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = hash << 8 | (digest[i] & 0xff);
+        }
+        // 0 marks a missing hash
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Renders a JSON value with sorted keys and normalised numbers
+     */
+    static String canonicalize(Object value) {
+        StringBuilder canonical = new StringBuilder();
+        canonicalize(value, Collections.<String>emptySet(), canonical);
+        return canonical.toString();
+    }
+
+    private static void canonicalize(Object value, Set<String> ignored, StringBuilder out) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            out.append("null");
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            String[] keys = JSONObject.getNames(object);
+            out.append('{');
+            if (keys != null) {
+                Arrays.sort(keys);
+                boolean first = true;
+                for (String key : keys) {
+                    if (ignored.contains(key)) {
+                        continue;
+                    }
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    out.append(JSONObject.quote(key)).append(':');
+                    // ignored fields only apply to the top level of a record
+                    canonicalize(object.opt(key), Collections.<String>emptySet(), out);
+                }
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                canonicalize(array.opt(i), Collections.<String>emptySet(), out);
+            }
+            out.append(']');
+        } else if (value instanceof Number) {
+            out.append(canonicalNumber((Number) value));
+        } else if (value instanceof Boolean) {
+            out.append(value.toString());
+        } else {
+            out.append(JSONObject.quote(value.toString()));
+        }
+    }
+
+    private static String canonicalNumber(Number number) {
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            return Long.toString(number.longValue());
+        }
+        try {
+            BigDecimal decimal = number instanceof BigDecimal ? (BigDecimal) number : new BigDecimal(number.toString());
+            if (decimal.signum() == 0) {
+                return "0";
+            }
+            return decimal.stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException ex) {
+            // NaN and infinities
+            return number.toString();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Set<String> ignoredFields;
+    private final Map<InsightlyEntity, Map<Long, long[]>> hashes =
+            new EnumMap<InsightlyEntity, Map<Long, long[]>>(InsightlyEntity.class);
+}
@@ -0,0 +1,344 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The custom field definitions of an account, used to decode the {@code CUSTOMFIELDS} of records into typed values.
+ * </p>
+ * <p>
+ * <p>
+ * Records list their custom fields as an array of {@code {CUSTOM_FIELD_ID, FIELD_VALUE}} objects, with dates,
+ * numbers and check boxes encoded as text. {@link #decode(JSONObject)} parses every value once, according to the
+ * type declared in {@link Insightly#getCustomFields()}, into a {@link CustomFields} object that stores the values in
+ * an array indexed by field. Each field has a fixed index among the fields of the same record type, so reading a
+ * custom field is an array access rather than a scan of the {@code CUSTOMFIELDS} array.
+ * Dropdown values are replaced by the option strings of the schema, so records share them.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * CustomFieldSchema schema = i.getCustomFieldSchema();
+ * CustomFieldSchema.Field renewal = schema.getField("OPPORTUNITY_FIELD_3");
+ * for (int n = 0; n < opportunities.length(); n++) {
+ *     Date date = schema.decode(opportunities.getJSONObject(n)).getDate(renewal);
+ *     ...
+ * }
+ * }
+ * </pre>
+ * <p>
+ * <p>
+ * A schema is immutable and can be shared between threads.
+ * </p>
+ */
+public class CustomFieldSchema {
+
+    /**
+     * Type a custom field value is decoded to
+     */
+    public enum Type {
+        /**
+         * {@link String}, for text, multi line text, URL and unknown field types
+         */
+        TEXT,
+        /**
+         * {@link Double}, for numeric, percent, currency and auto number fields
+         */
+        NUMBER,
+        /**
+         * {@link Date}
+         */
+        DATE,
+        /**
+         * {@link Boolean}, for check boxes
+         */
+        BOOLEAN,
+        /**
+         * {@link String}, one of {@link Field#getOptions()}
+         */
+        DROPDOWN,
+        /**
+         * {@link Long}, the ID of the linked record
+         */
+        LOOKUP
+    }
+
+    /**
+     * Definition of one custom field
+     */
+    public static final class Field {
+        Field(String id, String name, String fieldFor, Type type, int index, Map<String, String> options) {
+            this.id = id;
+            this.name = name;
+            this.fieldFor = fieldFor;
+            this.type = type;
+            this.index = index;
+            this.options = options;
+        }
+
+        /**
+         * ID of the field, e.g. {@code CONTACT_FIELD_1}
+         */
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Type of record the field belongs to, e.g. {@code CONTACT}
+         */
+        public String getFieldFor() {
+            return fieldFor;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Options of a dropdown field, empty for other types
+         */
+        public List<String> getOptions() {
+            return Collections.unmodifiableList(new ArrayList<String>(options.values()));
+        }
+
+        @Override
+        public String toString() {
+            return id + "(" + name + ", " + type + ")";
+        }
+
+        final String id;
+        final String name;
+        final String fieldFor;
+        final Type type;
+        // position among the fields of the same record type
+        final int index;
+        final Map<String, String> options;
+    }
+
+    /**
+     * Builds a schema from custom field definitions
+     *
+     * @param definitions custom fields as returned by {@link Insightly#getCustomFields()}
+     */
+    public static CustomFieldSchema of(JSONArray definitions) {
+        return new CustomFieldSchema(definitions);
+    }
+
+    private CustomFieldSchema(JSONArray definitions) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < definitions.length(); i++) {
+            JSONObject definition = definitions.getJSONObject(i);
+            String id = definition.getString("CUSTOM_FIELD_ID");
+            String fieldFor = definition.optString("FIELD_FOR", "");
+            Integer count = counts.get(fieldFor);
+            int index = count == null ? 0 : count;
+            counts.put(fieldFor, index + 1);
+
+            Map<String, String> options = new LinkedHashMap<String, String>();
+            JSONArray array = definition.optJSONArray("CUSTOM_FIELD_OPTIONS");
+            if (array != null) {
+                for (int o = 0; o < array.length(); o++) {
+                    String option = array.getJSONObject(o).optString("OPTION_VALUE", null);
+                    if (option != null) {
+                        options.put(option, option);
+                    }
+                }
+            }
+            fields.put(id, new Field(id, definition.optString("FIELD_NAME", id), fieldFor,
+                    type(definition.optString("FIELD_TYPE", "")), index, options));
+        }
+        this.sizes = counts;
+    }
+
+    /**
+     * Returns the definition of a field, or {@code null} if the schema has no such field
+     */
+    public Field getField(String id) {
+        return fields.get(id);
+    }
+
+    public List<Field> getFields() {
+        return Collections.unmodifiableList(new ArrayList<Field>(fields.values()));
+    }
+
+    /**
+     * Decodes the custom fields of a record. Fields missing from the schema, or belonging to another record type
+     * than the first known field of the record, are ignored.
+     *
+     * @param record record with a {@code CUSTOMFIELDS} array
+     * @throws IllegalArgumentException if a value does not match the type of its field
+     */
+    public CustomFields decode(JSONObject record) {
+        return decode(record.optJSONArray("CUSTOMFIELDS"));
+    }
+
+    /**
+     * Decodes the custom fields of a lazily decoded record, see {@link #decode(JSONObject)}
+     */
+    public CustomFields decode(LazyRecord record) {
+        return decode(record.has("CUSTOMFIELDS") && !record.isNull("CUSTOMFIELDS")
+                ? record.getJSONArray("CUSTOMFIELDS") : null);
+    }
+
+    private CustomFields decode(JSONArray customFields) {
+        if (customFields == null || customFields.length() == 0) {
+            return new CustomFields(this, null, new Object[0]);
+        }
+        String fieldFor = null;
+        Object[] values = null;
+        for (int i = 0; i < customFields.length(); i++) {
+            JSONObject entry = customFields.optJSONObject(i);
+            if (entry == null) {
+                continue;
+            }
+            Field field = fields.get(entry.optString("CUSTOM_FIELD_ID"));
+            if (field == null) {
+                continue;
+            }
+            if (fieldFor == null) {
+                fieldFor = field.fieldFor;
+                values = new Object[sizes.get(fieldFor)];
+            } else if (!fieldFor.equals(field.fieldFor)) {
+                continue;
+            }
+            Object value = entry.opt("FIELD_VALUE");
+            values[field.index] = value == null || value == JSONObject.NULL ? null : decodeValue(field, value);
+        }
+        return new CustomFields(this, fieldFor, values != null ? values : new Object[0]);
+    }
+
+    private static Object decodeValue(Field field, Object value) {
+        switch (field.type) {
+            case NUMBER:
+                if (value instanceof Number) {
+                    return ((Number) value).doubleValue();
+                }
+                String number = value.toString().trim();
+                if (number.isEmpty()) {
+                    return null;
+                }
+                try {
+                    return Double.valueOf(number);
+                } catch (NumberFormatException ex) {
+                    throw mismatch(field, value);
+                }
+            case DATE:
+                String date = value.toString().trim();
+                return date.isEmpty() ? null : new Date(parseDate(field, date));
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                String bit = value.toString().trim();
+                if (bit.equalsIgnoreCase("true") || bit.equals("1")) {
+                    return Boolean.TRUE;
+                }
+                if (bit.equalsIgnoreCase("false") || bit.equals("0") || bit.isEmpty()) {
+                    return Boolean.FALSE;
+                }
+                throw mismatch(field, value);
+            case DROPDOWN:
+                String option = value.toString();
+                String shared = field.options.get(option);
+                return shared != null ? shared : option;
+            case LOOKUP:
+                if (value instanceof Number) {
+                    return ((Number) value).longValue();
+                }
+                try {
+                    return Long.valueOf(value.toString().trim());
+                } catch (NumberFormatException ex) {
+                    throw mismatch(field, value);
+                }
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Parses {@code yyyy-MM-dd}, optionally followed by {@code HH:mm} or {@code HH:mm:ss} after a space or
+     * {@code T}, as a UTC time
+     */
+    static long parseDate(Field field, String text) {
+        int length = text.length();
+        if (!(length == 10 || length == 16 || length == 19) || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || (length > 10 && ((text.charAt(10) != ' ' && text.charAt(10) != 'T') || text.charAt(13) != ':'))
+                || (length == 19 && text.charAt(16) != ':')) {
+            throw mismatch(field, text);
+        }
+        int year = digits(field, text, 0, 4);
+        int month = digits(field, text, 5, 2);
+        int day = digits(field, text, 8, 2);
+        int hour = length > 10 ? digits(field, text, 11, 2) : 0;
+        int minute = length > 10 ? digits(field, text, 14, 2) : 0;
+        int second = length == 19 ? digits(field, text, 17, 2) : 0;
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            throw mismatch(field, text);
+        }
+        return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(Field field, String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw mismatch(field, text);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static Type type(String fieldType) {
+        if (fieldType.equals("NUMERIC") || fieldType.equals("PERCENT") || fieldType.equals("CURRENCY")
+                || fieldType.equals("AUTONUMBER")) {
+            return Type.NUMBER;
+        }
+        if (fieldType.equals("DATE")) {
+            return Type.DATE;
+        }
+        if (fieldType.equals("BIT")) {
+            return Type.BOOLEAN;
+        }
+        if (fieldType.equals("DROPDOWN")) {
+            return Type.DROPDOWN;
+        }
+        if (fieldType.equals("LOOKUP")) {
+            return Type.LOOKUP;
+        }
+        return Type.TEXT;
+    }
+
+    private static IllegalArgumentException mismatch(Field field, Object value) {
+        return new IllegalArgumentException("Custom field " + field.id + " expects a " + field.type + " value, got " + value);
+    }
+
+    private final Map<String, Field> fields = new LinkedHashMap<String, Field>();
+    private final Map<String, Integer> sizes;
+}
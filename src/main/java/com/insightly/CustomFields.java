@@ -0,0 +1,128 @@
+package com.insightly;
+
+import org.json.JSONException;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * The decoded custom field values of one record, see {@link CustomFieldSchema#decode(org.json.JSONObject)}.
+ * </p>
+ * <p>
+ * <p>
+ * Values are stored by field index, so reading a value is an array access, and only fields of the schema the values
+ * were decoded with can be read. Reading a field the record does not set,
+ * or a field of another record type, returns {@code null} from {@link #get(CustomFieldSchema.Field)};
+ * the typed getters throw a {@link JSONException} instead, like those of {@link org.json.JSONObject}.
+ * </p>
+ */
+public class CustomFields {
+
+    CustomFields(CustomFieldSchema schema, String fieldFor, Object[] values) {
+        this.schema = schema;
+        this.fieldFor = fieldFor;
+        this.values = values;
+    }
+
+    /**
+     * Returns the decoded value of a field, or {@code null} if it is not set
+     *
+     * @param field field of the schema the values were decoded with
+     * @throws IllegalArgumentException if the field belongs to another schema, e.g. one loaded by
+     *                                  {@link Insightly#reloadCustomFieldSchema()}, whose field indexes may differ
+     */
+    public Object get(CustomFieldSchema.Field field) {
+        if (schema.getField(field.id) != field) {
+            throw new IllegalArgumentException("Custom field " + field.id + " is not part of the schema the values were decoded with");
+        }
+        if (fieldFor == null || !fieldFor.equals(field.fieldFor) || field.index >= values.length) {
+            return null;
+        }
+        return values[field.index];
+    }
+
+    /**
+     * Returns the decoded value of a field, or {@code null} if it is not set or not in the schema
+     *
+     * @param id ID of the field, e.g. {@code CONTACT_FIELD_1}
+     */
+    public Object get(String id) {
+        CustomFieldSchema.Field field = schema.getField(id);
+        return field == null ? null : get(field);
+    }
+
+    public boolean has(CustomFieldSchema.Field field) {
+        return get(field) != null;
+    }
+
+    public String getString(CustomFieldSchema.Field field) {
+        return required(field).toString();
+    }
+
+    public double getDouble(CustomFieldSchema.Field field) {
+        return typed(field, Double.class);
+    }
+
+    public Date getDate(CustomFieldSchema.Field field) {
+        return typed(field, Date.class);
+    }
+
+    public boolean getBoolean(CustomFieldSchema.Field field) {
+        return typed(field, Boolean.class);
+    }
+
+    /**
+     * ID of the record a lookup field links to
+     */
+    public long getLong(CustomFieldSchema.Field field) {
+        return typed(field, Long.class);
+    }
+
+    /**
+     * Record type the values belong to, e.g. {@code CONTACT}, or {@code null} if the record has no custom fields
+     */
+    public String getFieldFor() {
+        return fieldFor;
+    }
+
+    /**
+     * Values that are set, by field ID
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (CustomFieldSchema.Field field : schema.getFields()) {
+            Object value = get(field);
+            if (value != null) {
+                map.put(field.id, value);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private Object required(CustomFieldSchema.Field field) {
+        Object value = get(field);
+        if (value == null) {
+            throw new JSONException("Custom field " + field.id + " is not set");
+        }
+        return value;
+    }
+
+    private <T> T typed(CustomFieldSchema.Field field, Class<T> type) {
+        Object value = required(field);
+        if (!type.isInstance(value)) {
+            throw new JSONException("Custom field " + field.id + " is not a " + type.getSimpleName());
+        }
+        return type.cast(value);
+    }
+
+    private final CustomFieldSchema schema;
+    private final String fieldFor;
+    private final Object[] values;
+}
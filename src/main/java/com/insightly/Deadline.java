@@ -0,0 +1,62 @@
+package com.insightly;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A point in time by which a request, or a whole bulk operation, has to be finished.
+ * </p>
+ * <p>
+ * <p>
+ * A deadline is absolute: when a client view created with {@link Insightly#withDeadline(Deadline)} is passed to
+ * a bulk operation such as a {@link PartitionedScan}, every request made by that operation shares the same deadline,
+ * and requests started late get correspondingly less time. Requests still running when the deadline passes are
+ * aborted, closing their connection.
+ * </p>
+ */
+public final class Deadline {
+
+    /**
+     * A deadline the given amount of time from now
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative, was " + duration);
+        }
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Time left until the deadline, 0 if it has passed
+     */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, expiresAtNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns the earlier of the two deadlines
+     *
+     * @param other another deadline, or {@code null}
+     */
+    public Deadline min(Deadline other) {
+        if (other == null || expiresAtNanos - other.expiresAtNanos <= 0) {
+            return this;
+        }
+        return other;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline in " + remaining(TimeUnit.MILLISECONDS) + " ms";
+    }
+
+    private final long expiresAtNanos;
+}
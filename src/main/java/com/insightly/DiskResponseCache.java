@@ -0,0 +1,564 @@
+package com.insightly;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Interceptor caching responses of slowly changing endpoints in a file, so they survive restarts.
+ * </p>
+ * <p>
+ * <p>
+ * Only {@code GET} requests whose path falls under a registered prefix are cached, each prefix with its own time to
+ * live. {@link #cacheMetadata(long, TimeUnit)} registers users, custom fields, pipelines, stages, categories and
+ * the other account settings a worker loads before serving traffic; with the cache in place a restarted worker reads
+ * them from disk instead of the API. Entries are keyed on the request URL and the API key, so clients of different
+ * accounts can share a file; only a SHA-256 hash of the key is stored. A successful {@code PUT}, {@code POST} or
+ * {@code DELETE} under a cached prefix drops the cached entries of that prefix. Downloads are never cached.
+ * </p>
+ * <p>
+ * <p>
+ * The file is memory mapped and written as a log, like {@link WriteJournal}: a new response is appended and
+ * replaces earlier entries of the same key. Entries are not synced; the operating system writes them out, so
+ * they survive a crash of the process but not necessarily of the machine. Every entry carries a CRC, and a
+ * torn entry is discarded when the file is reopened, together with anything after it. When the file reaches its
+ * maximum size, expired and replaced entries are squeezed out; should that not free enough space, the cache is
+ * cleared.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * DiskResponseCache cache = DiskResponseCache.open(Paths.get("insightly.cache"))
+ *         .cacheMetadata(1, TimeUnit.HOURS);
+ * i.addInterceptor(cache);
+ * }
+ * </pre>
+ */
+public class DiskResponseCache implements InsightlyInterceptor, AutoCloseable {
+
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Paths of the account settings registered by {@link #cacheMetadata(long, TimeUnit)}
+     */
+    public static final List<String> METADATA_PATHS = Collections.unmodifiableList(Arrays.asList(
+            "/v2.1/Users",
+            "/v2.1/CustomFields",
+            "/v2.1/Pipelines",
+            "/v2.1/PipelineStages",
+            "/v2.1/OpportunityCategories",
+            "/v2.1/ProjectCategories",
+            "/v2.1/FileCategories",
+            "/v2.1/OpportunityStateReasons",
+            "/v2.1/Relationships",
+            "/v2.1/Teams",
+            "/v2.1/Currencies",
+            "/v2.1/Countries"));
+
+    /**
+     * Opens the cache file with the default maximum size, creating it if it does not exist
+     */
+    public static DiskResponseCache open(Path file) throws IOException {
+        return open(file, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Opens the cache file, creating it if it does not exist
+     *
+     * @param file    cache file
+     * @param maxSize size the file may grow to, in bytes
+     * @throws IOException if the file is not a response cache or is in use by another process or cache
+     */
+    public static DiskResponseCache open(Path file, int maxSize) throws IOException {
+        if (maxSize < INITIAL_SIZE) {
+            throw new IllegalArgumentException("maxSize must be at least " + INITIAL_SIZE + ", was " + maxSize);
+        }
+        FileChannel channel = openLocked(file);
+        boolean opened = false;
+        try {
+            DiskResponseCache cache = new DiskResponseCache(channel, maxSize);
+            opened = true;
+            return cache;
+        } finally {
+            if (!opened) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the file and locks it for as long as the channel is open, since a second writer would corrupt the log
+     */
+    private static FileChannel openLocked(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean locked = false;
+        try {
+            locked = channel.tryLock() != null;
+        } catch (OverlappingFileLockException ex) {
+            // locked by another cache of this process
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+        if (!locked) {
+            throw new IOException(file + " is locked by another process or already open");
+        }
+        return channel;
+    }
+
+    private DiskResponseCache(FileChannel channel, int maxSize) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        // a file written with a larger maximum keeps its size
+        this.maxSize = (int) Math.min(Integer.MAX_VALUE, Math.max(maxSize, size));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+        if (size < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+            if (size >= HEADER_SIZE && buffer.getLong(0) != 0) {
+                throw new IOException("Not an Insightly response cache");
+            }
+            buffer.putLong(0, MAGIC);
+            buffer.putInt(8, 1);
+            buffer.putInt(HEADER_SIZE, 0);
+        }
+        generation = buffer.getInt(8);
+        recover();
+    }
+
+    /**
+     * Caches {@code GET} responses of the path and the paths below it
+     *
+     * @param pathPrefix path such as {@code /v2.1/Users}; {@code /v2.1/Users/12} and {@code /v2.1/Users?top=5}
+     *                   are cached too
+     * @param ttl        time a response is served from the cache
+     */
+    public DiskResponseCache cache(String pathPrefix, long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive, was " + ttl);
+        }
+        lock.lock();
+        try {
+            rules.put(pathPrefix, unit.toMillis(ttl));
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Caches the account settings listed in {@link #METADATA_PATHS}
+     *
+     * @param ttl time a response is served from the cache
+     */
+    public DiskResponseCache cacheMetadata(long ttl, TimeUnit unit) {
+        for (String path : METADATA_PATHS) {
+            cache(path, ttl, unit);
+        }
+        return this;
+    }
+
+    @Override
+    public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+        if (request.isDownload()) {
+            return chain.proceed(request);
+        }
+        String url = request.getUrl();
+        String prefix = rule(url);
+        if (prefix == null) {
+            return chain.proceed(request);
+        }
+        if (!"GET".equals(request.getMethod())) {
+            String response = chain.proceed(request);
+            invalidate(prefix);
+            return response;
+        }
+
+        ByteBuffer key = key(request.getApikey(), url);
+        String cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        String response = chain.proceed(request);
+        put(key, url, System.currentTimeMillis() + ttl(prefix), response);
+        return response;
+    }
+
+    /**
+     * Drops all entries
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of responses cached, including expired ones not yet removed
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of cacheable requests sent to the server
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the cache to disk and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String get(ByteBuffer key) {
+        lock.lock();
+        try {
+            Slot slot = index.get(key);
+            if (slot == null || closed) {
+                return null;
+            }
+            if (slot.expiresAt <= System.currentTimeMillis()) {
+                index.remove(key);
+                return null;
+            }
+            int urlLength = buffer.getInt(slot.offset + 16);
+            int length = buffer.getInt(slot.offset);
+            byte[] body = new byte[length - urlLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(slot.offset + ENTRY_HEADER_SIZE + urlLength);
+            view.get(body);
+            return new String(body, UTF_8);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(ByteBuffer key, String url, long expiresAt, String response) {
+        byte[] urlBytes = url.getBytes(UTF_8);
+        byte[] body = response.getBytes(UTF_8);
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            int offset = append(key, urlBytes, body, expiresAt);
+            if (offset >= 0) {
+                index.put(key, new Slot(offset, expiresAt, url));
+            }
+        } catch (IOException ex) {
+            // a response that cannot be cached is still returned; the cache starts over
+            reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the entries under a prefix by appending tombstones for them
+     */
+    private void invalidate(String prefix) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+            for (Map.Entry<ByteBuffer, Slot> entry : index.entrySet()) {
+                if (prefix.equals(rule(entry.getValue().url))) {
+                    keys.add(entry.getKey());
+                }
+            }
+            // dropped from the index first: an append may compact the file, which rebuilds the index
+            index.keySet().removeAll(keys);
+            for (ByteBuffer key : keys) {
+                if (append(key, new byte[0], new byte[0], 0) < 0) {
+                    reset();
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends an entry, compacting or growing the file if needed
+     *
+     * @return offset of the entry, or -1 if it does not fit even into an empty cache
+     */
+    private int append(ByteBuffer key, byte[] url, byte[] body, long expiresAt) throws IOException {
+        int length = url.length + body.length;
+        long required = (long) writeOffset + ENTRY_HEADER_SIZE + length + 4;
+        if (required > maxSize) {
+            compact();
+            required = (long) writeOffset + ENTRY_HEADER_SIZE + length + 4;
+            if (required > maxSize) {
+                return -1;
+            }
+        }
+        ensureCapacity(required);
+        int offset = writeOffset;
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 4);
+        view.putInt(generation);
+        view.putLong(expiresAt);
+        view.putInt(url.length);
+        view.putInt(crc(generation, expiresAt, key, url, body));
+        view.put(key.duplicate());
+        view.put(url);
+        view.put(body);
+        buffer.putInt(offset + ENTRY_HEADER_SIZE + length, 0);
+        // the length is written last, so a torn entry is never taken for a complete one
+        buffer.putInt(offset, length);
+        writeOffset = offset + ENTRY_HEADER_SIZE + length;
+        return offset;
+    }
+
+    /**
+     * Rewrites the live entries from the start of the file under a new generation. Entries not yet moved when
+     * the process dies carry the old generation and are discarded on reopen, so a crash only loses entries.
+     */
+    private void compact() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<ByteBuffer, Slot>> live = new ArrayList<Map.Entry<ByteBuffer, Slot>>();
+        for (Map.Entry<ByteBuffer, Slot> entry : index.entrySet()) {
+            if (entry.getValue().expiresAt > now) {
+                live.add(entry);
+            }
+        }
+        Collections.sort(live, new Comparator<Map.Entry<ByteBuffer, Slot>>() {
+            @Override
+            public int compare(Map.Entry<ByteBuffer, Slot> a, Map.Entry<ByteBuffer, Slot> b) {
+                return Integer.compare(a.getValue().offset, b.getValue().offset);
+            }
+        });
+        generation++;
+        buffer.putInt(8, generation);
+        index.clear();
+        int offset = HEADER_SIZE;
+        for (Map.Entry<ByteBuffer, Slot> entry : live) {
+            Slot slot = entry.getValue();
+            int length = buffer.getInt(slot.offset);
+            int urlLength = buffer.getInt(slot.offset + 16);
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(slot.offset + ENTRY_HEADER_SIZE);
+            view.get(payload);
+            byte[] url = Arrays.copyOfRange(payload, 0, urlLength);
+            byte[] body = Arrays.copyOfRange(payload, urlLength, length);
+            // entries only move towards the start, so later entries are read before being overwritten
+            view.position(offset + 4);
+            view.putInt(generation);
+            view.putLong(slot.expiresAt);
+            view.putInt(urlLength);
+            view.putInt(crc(generation, slot.expiresAt, entry.getKey(), url, body));
+            view.put(entry.getKey().duplicate());
+            view.put(payload);
+            buffer.putInt(offset, length);
+            index.put(entry.getKey(), new Slot(offset, slot.expiresAt, slot.url));
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        if (offset + 4 <= buffer.capacity()) {
+            buffer.putInt(offset, 0);
+        }
+        writeOffset = offset;
+    }
+
+    private void reset() {
+        index.clear();
+        generation++;
+        buffer.putInt(8, generation);
+        buffer.putInt(HEADER_SIZE, 0);
+        writeOffset = HEADER_SIZE;
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long capacity = Math.min(maxSize, Math.max(required, 2L * buffer.capacity()));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Indexes the valid entries of the current generation; later entries of a key replace earlier ones
+     */
+    private void recover() {
+        long now = System.currentTimeMillis();
+        int offset = HEADER_SIZE;
+        int limit = buffer.capacity();
+        while (offset + ENTRY_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(offset);
+            if (length < 0 || length > limit - offset - ENTRY_HEADER_SIZE || buffer.getInt(offset + 4) != generation) {
+                break;
+            }
+            long expiresAt = buffer.getLong(offset + 8);
+            int urlLength = buffer.getInt(offset + 16);
+            if (urlLength < 0 || urlLength > length || (length == 0 && expiresAt != 0)) {
+                break;
+            }
+            byte[] key = new byte[KEY_SIZE];
+            byte[] url = new byte[urlLength];
+            byte[] body = new byte[length - urlLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 24);
+            view.get(key);
+            view.get(url);
+            view.get(body);
+            if (buffer.getInt(offset + 20) != crc(generation, expiresAt, ByteBuffer.wrap(key), url, body)) {
+                break;
+            }
+            if (expiresAt > now) {
+                index.put(ByteBuffer.wrap(key), new Slot(offset, expiresAt, new String(url, UTF_8)));
+            } else {
+                index.remove(ByteBuffer.wrap(key));
+            }
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        writeOffset = offset;
+        if (offset + 4 <= limit) {
+            buffer.putInt(offset, 0);
+        }
+    }
+
+    /**
+     * Registered prefix the URL falls under, or {@code null}
+     */
+    private String rule(String url) {
+        String path = URI.create(url).getRawPath();
+        lock.lock();
+        try {
+            String match = null;
+            for (String prefix : rules.keySet()) {
+                if ((path.equals(prefix) || path.startsWith(prefix.endsWith("/") ? prefix : prefix + "/"))
+                        && (match == null || prefix.length() > match.length())) {
+                    match = prefix;
+                }
+            }
+            return match;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long ttl(String prefix) {
+        lock.lock();
+        try {
+            return rules.get(prefix);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer key(String apikey, String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((apikey != null ? apikey : "").getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(url.getBytes(UTF_8));
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static int crc(int generation, long expiresAt, ByteBuffer key, byte[] url, byte[] body) {
+        CRC32 crc = new CRC32();
+        byte[] header = ByteBuffer.allocate(12).putInt(generation).putLong(expiresAt).array();
+        crc.update(header, 0, header.length);
+        byte[] digest = new byte[KEY_SIZE];
+        key.duplicate().get(digest);
+        crc.update(digest, 0, digest.length);
+        crc.update(url, 0, url.length);
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static final class Slot {
+        Slot(int offset, long expiresAt, String url) {
+            this.offset = offset;
+            this.expiresAt = expiresAt;
+            this.url = url;
+        }
+
+        final int offset;
+        final long expiresAt;
+        final String url;
+    }
+
+    // header: magic, generation
+    private static final long MAGIC = 0x494e53524553504eL;
+    private static final int HEADER_SIZE = 16;
+    private static final int KEY_SIZE = 32;
+    // entry: payload length, generation, expiry, URL length, CRC, key hash, payload (URL and response body)
+    private static final int ENTRY_HEADER_SIZE = 24 + KEY_SIZE;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+    private final int maxSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Long> rules = new LinkedHashMap<String, Long>();
+    private final Map<ByteBuffer, Slot> index = new HashMap<ByteBuffer, Slot>();
+    private MappedByteBuffer buffer;
+    private int generation;
+    private int writeOffset;
+    private boolean closed;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+}
@@ -0,0 +1,228 @@
+package com.insightly;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Shares a bounded number of request slots between tenants using weighted round robin.
+ * </p>
+ * <p>
+ * <p>
+ * Each tenant has a weight and its own concurrency cap. Whenever a slot frees up, the scheduler visits tenants
+ * in turn and lets each tenant with waiting requests take up to {@code weight} slots before moving on,
+ * skipping tenants that are at their own cap. A tenant with a deep backlog therefore cannot starve the others.
+ * </p>
+ */
+class FairScheduler {
+
+    FairScheduler(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    Tenant register(String name, int weight, int maxConcurrency) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1, was " + weight);
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1, was " + maxConcurrency);
+        }
+        lock.lock();
+        try {
+            Tenant tenant = new Tenant(name, weight, maxConcurrency);
+            tenants.add(tenant);
+            return tenant;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a tenant; requests of the tenant still waiting for a slot fail
+     */
+    void unregister(Tenant tenant) {
+        lock.lock();
+        try {
+            tenant.removed = true;
+            for (Waiter waiter : tenant.waiters) {
+                waiter.rejected = true;
+                waiter.condition.signal();
+            }
+            waiting -= tenant.waiters.size();
+            tenant.waiters.clear();
+            int index = tenants.indexOf(tenant);
+            if (index >= 0) {
+                tenants.remove(index);
+                if (cursor > index) {
+                    cursor--;
+                }
+                if (cursor >= tenants.size()) {
+                    cursor = 0;
+                }
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the tenant is granted a slot
+     *
+     * @param deadline deadline of the request, or {@code null}
+     * @throws InsightlyException if the tenant is removed or the deadline passes before it is granted a slot
+     */
+    void acquire(Tenant tenant, Deadline deadline) throws InsightlyException {
+        lock.lock();
+        try {
+            if (tenant.removed) {
+                throw removed(tenant);
+            }
+            if (waiting == 0 && inFlight < capacity && tenant.inFlight < tenant.maxConcurrency) {
+                grant(tenant);
+                return;
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            tenant.waiters.add(waiter);
+            waiting++;
+            dispatch();
+            try {
+                while (!waiter.granted && !waiter.rejected) {
+                    if (deadline == null) {
+                        waiter.condition.await();
+                    } else {
+                        long nanos = deadline.remaining(TimeUnit.NANOSECONDS);
+                        if (nanos <= 0) {
+                            abandon(tenant, waiter);
+                            throw InsightlyRequest.deadlineExceeded(null);
+                        }
+                        waiter.condition.awaitNanos(nanos);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                abandon(tenant, waiter);
+                Thread.currentThread().interrupt();
+                throw new InsightlyException("Interrupted while waiting for a request slot", ex);
+            }
+            if (waiter.rejected) {
+                throw removed(tenant);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a slot previously granted to the tenant
+     */
+    void release(Tenant tenant) {
+        lock.lock();
+        try {
+            inFlight--;
+            tenant.inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up waiting, returning the slot if it was granted in the meantime
+     */
+    private void abandon(Tenant tenant, Waiter waiter) {
+        if (waiter.granted) {
+            release(tenant);
+        } else if (!waiter.rejected) {
+            tenant.waiters.remove(waiter);
+            waiting--;
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        int idle = 0;
+        while (inFlight < capacity && waiting > 0 && idle < tenants.size()) {
+            Tenant tenant = tenants.get(cursor);
+            if (tenant.credits > 0 && !tenant.waiters.isEmpty() && tenant.inFlight < tenant.maxConcurrency) {
+                Waiter waiter = tenant.waiters.poll();
+                waiting--;
+                tenant.credits--;
+                grant(tenant);
+                waiter.granted = true;
+                waiter.condition.signal();
+                idle = 0;
+            } else {
+                tenant.credits = tenant.weight;
+                cursor = (cursor + 1) % tenants.size();
+                idle++;
+            }
+        }
+    }
+
+    private static InsightlyException removed(Tenant tenant) {
+        return new InsightlyException("Tenant " + tenant + " was removed while waiting for a request slot");
+    }
+
+    private void grant(Tenant tenant) {
+        inFlight++;
+        tenant.inFlight++;
+    }
+
+    static final class Tenant {
+        Tenant(String name, int weight, int maxConcurrency) {
+            this.name = name;
+            this.weight = weight;
+            this.maxConcurrency = maxConcurrency;
+            this.credits = weight;
+        }
+
+        int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        final String name;
+        final int weight;
+        final int maxConcurrency;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+        int credits;
+        int inFlight;
+        boolean removed;
+    }
+
+    private static final class Waiter {
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+
+        final Condition condition;
+        boolean granted;
+        boolean rejected;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final List<Tenant> tenants = new ArrayList<Tenant>();
+    private int cursor;
+    private int inFlight;
+    private int waiting;
+}
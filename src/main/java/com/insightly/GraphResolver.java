@@ -0,0 +1,348 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Walks the {@code LINKS} between contacts, organisations, opportunities and projects breadth-first.
+ * </p>
+ * <p>
+ * <p>
+ * Starting from one record, every level of the walk is loaded at once: the records not yet visited are grouped by
+ * entity and fetched with a single {@code ids=} query where the endpoint supports it (contacts, organisations),
+ * or with concurrent requests otherwise (opportunities, projects). Resolving an account tree three links deep
+ * therefore takes a few round trips, however many records it contains. Besides {@code LINKS}, a contact's
+ * {@code DEFAULT_LINKED_ORGANISATION} and a project's {@code OPPORTUNITY_ID} are followed. Link labels are taken from
+ * the link's role or from its relationship, see {@link Insightly#getRelationships()}.
+ * </p>
+ * <p>
+ * <p>
+ * Records loaded by the resolver are cached, so resolving overlapping graphs does not fetch shared records again.
+ * Call {@link #clear()} to see changes made since they were loaded.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * GraphResolver resolver = new GraphResolver(i, executor);
+ * LinkGraph account = resolver.resolve(InsightlyEntity.ORGANISATIONS, 123456, 3);
+ * for (LinkGraph.Edge edge : account.getEdges()) {
+ *     ...
+ * }
+ * }
+ * </pre>
+ */
+public class GraphResolver {
+
+    /**
+     * @param insightly client the records are read with
+     * @param executor  executor running the requests of each level
+     */
+    public GraphResolver(Insightly insightly, ExecutorService executor) {
+        this.insightly = insightly;
+        this.executor = executor;
+    }
+
+    /**
+     * Resolves the records reachable from a record within the given number of links
+     *
+     * @param entity entity of the starting record; contacts, organisations, opportunities or projects
+     * @param id     ID of the starting record
+     * @param depth  maximum number of links followed from the starting record
+     * @return the graph, or {@code null} if the starting record does not exist
+     */
+    public LinkGraph resolve(InsightlyEntity entity, long id, int depth) throws InsightlyException {
+        if (!LINKED.contains(entity)) {
+            throw new IllegalArgumentException(entity + " records have no links");
+        }
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative, was " + depth);
+        }
+        Map<InsightlyEntity, LongSet> root = new EnumMap<InsightlyEntity, LongSet>(InsightlyEntity.class);
+        root.put(entity, LongSet.of(id));
+        JSONObject record = load(root).get(LinkGraph.key(entity, id));
+        if (record == null) {
+            return null;
+        }
+
+        LinkGraph graph = new LinkGraph(new LinkGraph.Node(entity, id, record, 0));
+        List<LinkGraph.Node> level = Collections.singletonList(graph.getRoot());
+        for (int d = 1; d <= depth && !level.isEmpty(); d++) {
+            List<Link> links = new ArrayList<Link>();
+            Map<InsightlyEntity, LongSet.Builder> wanted = new EnumMap<InsightlyEntity, LongSet.Builder>(InsightlyEntity.class);
+            for (LinkGraph.Node node : level) {
+                for (Link link : links(node)) {
+                    links.add(link);
+                    if (graph.getNode(link.entity, link.id) == null) {
+                        LongSet.Builder ids = wanted.get(link.entity);
+                        if (ids == null) {
+                            ids = LongSet.builder();
+                            wanted.put(link.entity, ids);
+                        }
+                        ids.add(link.id);
+                    }
+                }
+            }
+
+            Map<InsightlyEntity, LongSet> unvisited = new EnumMap<InsightlyEntity, LongSet>(InsightlyEntity.class);
+            for (Map.Entry<InsightlyEntity, LongSet.Builder> entry : wanted.entrySet()) {
+                unvisited.put(entry.getKey(), entry.getValue().build());
+            }
+            Map<String, JSONObject> loaded = load(unvisited);
+            List<LinkGraph.Node> next = new ArrayList<LinkGraph.Node>();
+            for (Map.Entry<InsightlyEntity, LongSet> entry : unvisited.entrySet()) {
+                LongSet ids = entry.getValue();
+                for (int i = 0; i < ids.size(); i++) {
+                    JSONObject found = loaded.get(LinkGraph.key(entry.getKey(), ids.get(i)));
+                    if (found != null) {
+                        LinkGraph.Node node = new LinkGraph.Node(entry.getKey(), ids.get(i), found, d);
+                        graph.add(node);
+                        next.add(node);
+                    }
+                }
+            }
+            for (Link link : links) {
+                LinkGraph.Node to = graph.getNode(link.entity, link.id);
+                // links to deleted or invisible records are dropped
+                if (to != null) {
+                    graph.add(new LinkGraph.Edge(link.from, to, link.link, link.label));
+                }
+            }
+            level = next;
+        }
+        return graph;
+    }
+
+    /**
+     * Forgets all cached records and relationships
+     */
+    public void clear() {
+        cache.clear();
+        relationships = null;
+    }
+
+    /**
+     * Number of records cached
+     */
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    /**
+     * Links found in a record, at most one per target record
+     */
+    private List<Link> links(LinkGraph.Node node) throws InsightlyException {
+        JSONObject record = node.getRecord();
+        List<Link> links = new ArrayList<Link>();
+        Set<String> targets = new HashSet<String>();
+        JSONArray array = record.optJSONArray("LINKS");
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject link = array.optJSONObject(i);
+                if (link == null) {
+                    continue;
+                }
+                boolean forward = true;
+                for (Map.Entry<String, InsightlyEntity> field : LINK_FIELDS.entrySet()) {
+                    long target = link.optLong(field.getKey(), 0);
+                    if (field.getValue() == node.getEntity() && target == node.getId()) {
+                        forward = !field.getKey().startsWith("SECOND_");
+                    }
+                }
+                for (Map.Entry<String, InsightlyEntity> field : LINK_FIELDS.entrySet()) {
+                    long target = link.optLong(field.getKey(), 0);
+                    if (target <= 0 || (field.getValue() == node.getEntity() && target == node.getId())) {
+                        continue;
+                    }
+                    if (targets.add(LinkGraph.key(field.getValue(), target))) {
+                        links.add(new Link(node, field.getValue(), target, link, label(link, forward)));
+                    }
+                }
+            }
+        }
+        if (node.getEntity() == InsightlyEntity.CONTACTS) {
+            reference(node, "DEFAULT_LINKED_ORGANISATION", InsightlyEntity.ORGANISATIONS, links, targets);
+        } else if (node.getEntity() == InsightlyEntity.PROJECTS) {
+            reference(node, "OPPORTUNITY_ID", InsightlyEntity.OPPORTUNITIES, links, targets);
+        }
+        return links;
+    }
+
+    private static void reference(LinkGraph.Node node, String field, InsightlyEntity entity,
+                                  List<Link> links, Set<String> targets) {
+        long target = node.getRecord().optLong(field, 0);
+        if (target > 0 && targets.add(LinkGraph.key(entity, target))) {
+            links.add(new Link(node, entity, target, null, null));
+        }
+    }
+
+    private String label(JSONObject link, boolean forward) throws InsightlyException {
+        String role = link.optString("ROLE", "");
+        if (!role.isEmpty()) {
+            return role;
+        }
+        long relationshipId = link.optLong("RELATIONSHIP_ID", 0);
+        if (relationshipId <= 0) {
+            return null;
+        }
+        Map<Long, JSONObject> relationships = this.relationships;
+        if (relationships == null) {
+            relationships = new HashMap<Long, JSONObject>();
+            JSONArray all = insightly.getRelationships();
+            for (int i = 0; i < all.length(); i++) {
+                JSONObject relationship = all.getJSONObject(i);
+                relationships.put(relationship.getLong("RELATIONSHIP_ID"), relationship);
+            }
+            this.relationships = relationships;
+        }
+        JSONObject relationship = relationships.get(relationshipId);
+        if (relationship == null) {
+            return null;
+        }
+        String title = relationship.optString(forward ? "FORWARD" : "REVERSE", "");
+        if (title.isEmpty()) {
+            title = relationship.optString(forward ? "FORWARD_TITLE" : "REVERSE_TITLE", "");
+        }
+        return title.isEmpty() ? null : title;
+    }
+
+    /**
+     * Loads the wanted records that are not cached, all entities and IDs at once
+     *
+     * @return the wanted records that exist, by {@link LinkGraph#key(InsightlyEntity, long)}
+     */
+    private Map<String, JSONObject> load(Map<InsightlyEntity, LongSet> wanted) throws InsightlyException {
+        Map<String, JSONObject> loaded = new HashMap<String, JSONObject>();
+        List<Future<JSONArray>> futures = new ArrayList<Future<JSONArray>>();
+        List<InsightlyEntity> entities = new ArrayList<InsightlyEntity>();
+        for (Map.Entry<InsightlyEntity, LongSet> entry : wanted.entrySet()) {
+            final InsightlyEntity entity = entry.getKey();
+            LongSet.Builder missing = LongSet.builder();
+            LongSet ids = entry.getValue();
+            for (int i = 0; i < ids.size(); i++) {
+                JSONObject cached = cache.get(LinkGraph.key(entity, ids.get(i)));
+                if (cached != null) {
+                    loaded.put(LinkGraph.key(entity, ids.get(i)), cached);
+                } else {
+                    missing.add(ids.get(i));
+                }
+            }
+            final LongSet fetch = missing.build();
+            if (fetch.isEmpty()) {
+                continue;
+            }
+            if (entity.supportsParam("ids")) {
+                futures.add(executor.submit(new Callable<JSONArray>() {
+                    @Override
+                    public JSONArray call() throws InsightlyException {
+                        return insightly.queryByIds(InsightlyQuery.from(entity), fetch);
+                    }
+                }));
+                entities.add(entity);
+            } else {
+                for (int i = 0; i < fetch.size(); i++) {
+                    final long id = fetch.get(i);
+                    futures.add(executor.submit(new Callable<JSONArray>() {
+                        @Override
+                        public JSONArray call() throws InsightlyException {
+                            try {
+                                return new JSONArray().put(insightly.getRequest(entity.getPath() + "/" + id).asJSONObject());
+                            } catch (InsightlyException ex) {
+                                if (ex.hasResponse() && ex.getResponse().getStatus() == 404) {
+                                    return new JSONArray();
+                                }
+                                throw ex;
+                            }
+                        }
+                    }));
+                    entities.add(entity);
+                }
+            }
+        }
+
+        try {
+            for (int f = 0; f < futures.size(); f++) {
+                InsightlyEntity entity = entities.get(f);
+                JSONArray records = futures.get(f).get();
+                for (int i = 0; i < records.length(); i++) {
+                    JSONObject record = records.getJSONObject(i);
+                    String key = LinkGraph.key(entity, record.getLong(entity.getIdField()));
+                    cache.put(key, record);
+                    loaded.put(key, record);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while resolving links", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof InsightlyException) {
+                throw (InsightlyException) ex.getCause();
+            }
+            throw new InsightlyException("Resolving links failed", ex.getCause());
+        } finally {
+            for (Future<JSONArray> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return loaded;
+    }
+
+    private static final class Link {
+        Link(LinkGraph.Node from, InsightlyEntity entity, long id, JSONObject link, String label) {
+            this.from = from;
+            this.entity = entity;
+            this.id = id;
+            this.link = link;
+            this.label = label;
+        }
+
+        final LinkGraph.Node from;
+        final InsightlyEntity entity;
+        final long id;
+        final JSONObject link;
+        final String label;
+    }
+
+    private static final Set<InsightlyEntity> LINKED = Collections.unmodifiableSet(EnumSet.of(
+            InsightlyEntity.CONTACTS,
+            InsightlyEntity.ORGANISATIONS,
+            InsightlyEntity.OPPORTUNITIES,
+            InsightlyEntity.PROJECTS));
+
+    /**
+     * Fields of a link naming the linked records
+     */
+    private static final Map<String, InsightlyEntity> LINK_FIELDS = new LinkedHashMap<String, InsightlyEntity>();
+
+    static {
+        LINK_FIELDS.put("CONTACT_ID", InsightlyEntity.CONTACTS);
+        LINK_FIELDS.put("ORGANISATION_ID", InsightlyEntity.ORGANISATIONS);
+        LINK_FIELDS.put("OPPORTUNITY_ID", InsightlyEntity.OPPORTUNITIES);
+        LINK_FIELDS.put("PROJECT_ID", InsightlyEntity.PROJECTS);
+        LINK_FIELDS.put("SECOND_CONTACT_ID", InsightlyEntity.CONTACTS);
+        LINK_FIELDS.put("SECOND_ORGANISATION_ID", InsightlyEntity.ORGANISATIONS);
+        LINK_FIELDS.put("SECOND_OPPORTUNITY_ID", InsightlyEntity.OPPORTUNITIES);
+        LINK_FIELDS.put("SECOND_PROJECT_ID", InsightlyEntity.PROJECTS);
+    }
+
+    private final Insightly insightly;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, JSONObject> cache = new ConcurrentHashMap<String, JSONObject>();
+    private volatile Map<Long, JSONObject> relationships;
+}
@@ -0,0 +1,255 @@
+package com.insightly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Interceptor that hedges GET requests to cut tail latency.
+ * </p>
+ * <p>
+ * <p>
+ * A GET is sent as usual; if no response has arrived after the hedge delay, an identical request is sent
+ * and whichever response arrives first is returned, the other attempt is aborted, closing its connection.
+ * The hedge delay follows a percentile (by default the 95th) of recently observed response times,
+ * so only the slowest requests are duplicated.
+ * </p>
+ * <p>
+ * <p>
+ * To avoid amplifying load when the server is slow across the board, hedges are paid for from a budget
+ * that grows by {@code maxHedgeRatio} with every request: at most that fraction of requests is ever duplicated.
+ * Requests other than GET are passed through unchanged, since they are not safe to repeat.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Insightly i = new Insightly(apikey).addInterceptor(new HedgingPolicy(executor));
+ * }
+ * </pre>
+ */
+public class HedgingPolicy implements InsightlyInterceptor {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+
+    /**
+     * @param executor executor running the request attempts; needs at least two threads per concurrent request
+     */
+    public HedgingPolicy(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the latency percentile used as hedge delay, e.g. {@code 0.95}
+     */
+    public HedgingPolicy percentile(double percentile) {
+        if (percentile <= 0.0 || percentile >= 1.0) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1, was " + percentile);
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Bounds the hedge delay. The maximum is also used until enough response times have been observed.
+     */
+    public HedgingPolicy delayBounds(long minDelay, long maxDelay, TimeUnit unit) {
+        if (minDelay < 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Invalid delay bounds " + minDelay + " - " + maxDelay);
+        }
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    /**
+     * Sets the largest fraction of requests that may be hedged
+     */
+    public HedgingPolicy maxHedgeRatio(double maxHedgeRatio) {
+        if (maxHedgeRatio < 0.0 || maxHedgeRatio > 1.0) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1, was " + maxHedgeRatio);
+        }
+        this.maxHedgeRatio = maxHedgeRatio;
+        return this;
+    }
+
+    @Override
+    public String intercept(final InsightlyRequest request, final Chain chain) throws InsightlyException {
+        // two attempts of a download would write the same file
+        if (!"GET".equals(request.getMethod()) || request.isDownload()) {
+            return chain.proceed(request);
+        }
+        earnBudget();
+
+        ExecutorCompletionService<String> attempts = new ExecutorCompletionService<String>(executor);
+        List<Future<String>> futures = new ArrayList<Future<String>>(2);
+        List<InsightlyRequest.Abortable> handles = new ArrayList<InsightlyRequest.Abortable>(2);
+        Future<String> winner = null;
+        try {
+            futures.add(attempts.submit(attempt(request, chain, handles)));
+            Future<String> done = attempts.poll(hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+            if (done == null && spendBudget()) {
+                futures.add(attempts.submit(attempt(request, chain, handles)));
+            }
+
+            InsightlyException failure = null;
+            for (int pending = futures.size(); pending > 0; pending--) {
+                if (done == null) {
+                    done = attempts.take();
+                }
+                try {
+                    String response = done.get();
+                    winner = done;
+                    return response;
+                } catch (ExecutionException ex) {
+                    failure = unwrap(ex);
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while waiting for a response", ex);
+        } finally {
+            // blocking reads ignore interrupts, so the losing attempt's connection is aborted as well
+            for (int n = 0; n < futures.size(); n++) {
+                if (futures.get(n) != winner) {
+                    futures.get(n).cancel(true);
+                    handles.get(n).abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * An attempt of the request, sent through a connection that can be aborted with the handle added to
+     * {@code handles}
+     */
+    private Callable<String> attempt(final InsightlyRequest request, final Chain chain,
+                                     List<InsightlyRequest.Abortable> handles) {
+        final InsightlyRequest.Abortable handle = new InsightlyRequest.Abortable();
+        handles.add(handle);
+        return new Callable<String>() {
+            @Override
+            public String call() throws InsightlyException {
+                long start = System.nanoTime();
+                handle.bind();
+                try {
+                    String response = chain.proceed(request);
+                    if (!handle.isAborted()) {
+                        recordLatency(System.nanoTime() - start);
+                    }
+                    return response;
+                } finally {
+                    handle.unbind();
+                }
+            }
+        };
+    }
+
+    /**
+     * Number of requests that were hedged so far
+     */
+    public long getHedgeCount() {
+        lock.lock();
+        try {
+            return hedges;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Current hedge delay in milliseconds
+     */
+    public long getHedgeDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos());
+    }
+
+    private long hedgeDelayNanos() {
+        lock.lock();
+        try {
+            if (samples < MIN_SAMPLES) {
+                return maxDelayNanos;
+            }
+            if (delayNanos < 0) {
+                int count = (int) Math.min(samples, latencies.length);
+                long[] sorted = Arrays.copyOf(latencies, count);
+                Arrays.sort(sorted);
+                long value = sorted[Math.min(count - 1, (int) (percentile * count))];
+                delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, value));
+            }
+            return delayNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        lock.lock();
+        try {
+            latencies[(int) (samples % latencies.length)] = nanos;
+            samples++;
+            // recompute the percentile lazily, at most every RECOMPUTE_INTERVAL samples
+            if (samples % RECOMPUTE_INTERVAL == 0) {
+                delayNanos = -1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void earnBudget() {
+        lock.lock();
+        try {
+            budget = Math.min(MAX_BUDGET, budget + maxHedgeRatio);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spendBudget() {
+        lock.lock();
+        try {
+            if (budget >= 1.0) {
+                budget -= 1.0;
+                hedges++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static InsightlyException unwrap(ExecutionException ex) {
+        if (ex.getCause() instanceof InsightlyException) {
+            return (InsightlyException) ex.getCause();
+        }
+        return new InsightlyException("Request failed", ex.getCause());
+    }
+
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_INTERVAL = 50;
+    private static final double MAX_BUDGET = 10.0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ExecutorService executor;
+    private final long[] latencies = new long[1000];
+    private long samples;
+    private long delayNanos = -1;
+    private double percentile = DEFAULT_PERCENTILE;
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private long maxDelayNanos = TimeUnit.SECONDS.toNanos(2);
+    private double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private double budget;
+    private long hedges;
+}
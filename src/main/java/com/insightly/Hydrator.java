@@ -0,0 +1,265 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>
+ * Loads records together with their child collections (emails, notes, tasks, state history) concurrently.
+ * </p>
+ * <p>
+ * <p>
+ * Showing a contact with {@link Insightly#getContact(long)}, {@link Insightly#getContactEmails(long)},
+ * {@link Insightly#getContactNotes(long)} and {@link Insightly#getContactTasks(long)} costs four round trips in a row.
+ * The hydrator sends all of those requests at once, for any number of parents, so loading them costs about the
+ * latency of the slowest request. Parents of entities supporting the {@code ids} parameter are fetched with a single
+ * query. At most {@code parallelism} requests of the hydrator are in flight; identical requests made at the same time,
+ * by this or concurrent calls, are sent once and their response shared.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Hydrator hydrator = new Hydrator(i, executor, 8);
+ * Map<Long, Aggregate> contacts = hydrator.hydrate(InsightlyEntity.CONTACTS, LongSet.of(1, 2, 3),
+ *         EnumSet.of(Hydrator.Child.EMAILS, Hydrator.Child.NOTES, Hydrator.Child.TASKS));
+ * JSONArray notes = contacts.get(1L).get(Hydrator.Child.NOTES);
+ * }
+ * </pre>
+ */
+public class Hydrator {
+
+    /**
+     * Child collections that can be loaded with their parent
+     */
+    public enum Child {
+        EMAILS("Emails"),
+        NOTES("Notes"),
+        TASKS("Tasks"),
+        /**
+         * State history of an opportunity
+         */
+        STATE_HISTORY("StateHistory");
+
+        Child(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Whether records of the entity have this child collection
+         */
+        public boolean appliesTo(InsightlyEntity entity) {
+            if (this == STATE_HISTORY) {
+                return entity == InsightlyEntity.OPPORTUNITIES;
+            }
+            return PARENTS.contains(entity);
+        }
+
+        private final String path;
+    }
+
+    /**
+     * Entities that have child collections
+     */
+    public static final Set<InsightlyEntity> PARENTS = Collections.unmodifiableSet(EnumSet.of(
+            InsightlyEntity.CONTACTS,
+            InsightlyEntity.LEADS,
+            InsightlyEntity.ORGANISATIONS,
+            InsightlyEntity.OPPORTUNITIES,
+            InsightlyEntity.PROJECTS));
+
+    /**
+     * @param insightly   client the records are read with
+     * @param executor    executor running the requests
+     * @param parallelism maximum number of requests in flight
+     */
+    public Hydrator(Insightly insightly, ExecutorService executor, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+        }
+        this.insightly = insightly;
+        this.executor = executor;
+        this.permits = new Semaphore(parallelism);
+    }
+
+    /**
+     * Loads a record and the given child collections
+     *
+     * @return the aggregate, or {@code null} if the record does not exist
+     */
+    public Aggregate hydrate(InsightlyEntity entity, long id, Set<Child> children) throws InsightlyException {
+        return hydrate(entity, LongSet.of(id), children).get(id);
+    }
+
+    /**
+     * Loads records and the given child collections of each
+     *
+     * @param entity   entity the records belong to, one of {@link #PARENTS}
+     * @param ids      IDs of the records
+     * @param children child collections to load
+     * @return aggregates by record ID, in ID order; records that do not exist are missing
+     * @throws IllegalArgumentException if the entity does not have one of the child collections
+     */
+    public Map<Long, Aggregate> hydrate(InsightlyEntity entity, LongSet ids, Set<Child> children)
+            throws InsightlyException {
+        if (!PARENTS.contains(entity)) {
+            throw new IllegalArgumentException(entity + " has no child collections");
+        }
+        for (Child child : children) {
+            if (!child.appliesTo(entity)) {
+                throw new IllegalArgumentException(entity + " has no " + child);
+            }
+        }
+
+        try {
+            Future<Object> batch = null;
+            Map<Long, Future<Object>> parents = new LinkedHashMap<Long, Future<Object>>();
+            if (entity.supportsParam("ids") && !ids.isEmpty()) {
+                batch = fetchByIds(entity, ids);
+            } else {
+                for (int i = 0; i < ids.size(); i++) {
+                    parents.put(ids.get(i), fetchRecord(entity.getPath() + "/" + ids.get(i)));
+                }
+            }
+            Map<Long, Map<Child, Future<Object>>> pending = new LinkedHashMap<Long, Map<Child, Future<Object>>>();
+            for (int i = 0; i < ids.size(); i++) {
+                long id = ids.get(i);
+                Map<Child, Future<Object>> futures = new EnumMap<Child, Future<Object>>(Child.class);
+                for (Child child : children) {
+                    futures.put(child, fetchChildren(entity.getPath() + "/" + id + "/" + child.path));
+                }
+                pending.put(id, futures);
+            }
+
+            Map<Long, JSONObject> records = new LinkedHashMap<Long, JSONObject>();
+            if (batch != null) {
+                JSONArray found = (JSONArray) batch.get();
+                for (int i = 0; i < found.length(); i++) {
+                    JSONObject record = found.getJSONObject(i);
+                    records.put(record.getLong(entity.getIdField()), record);
+                }
+            } else {
+                for (Map.Entry<Long, Future<Object>> parent : parents.entrySet()) {
+                    Object record = parent.getValue().get();
+                    if (record != null) {
+                        records.put(parent.getKey(), (JSONObject) record);
+                    }
+                }
+            }
+
+            Map<Long, Aggregate> aggregates = new LinkedHashMap<Long, Aggregate>();
+            for (Map.Entry<Long, Map<Child, Future<Object>>> entry : pending.entrySet()) {
+                JSONObject record = records.get(entry.getKey());
+                Map<Child, JSONArray> loaded = new EnumMap<Child, JSONArray>(Child.class);
+                for (Map.Entry<Child, Future<Object>> child : entry.getValue().entrySet()) {
+                    JSONArray value = (JSONArray) child.getValue().get();
+                    loaded.put(child.getKey(), value != null ? value : new JSONArray());
+                }
+                if (record != null) {
+                    aggregates.put(entry.getKey(), new Aggregate(record, loaded));
+                }
+            }
+            return aggregates;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while loading " + entity, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof InsightlyException) {
+                throw (InsightlyException) ex.getCause();
+            }
+            throw new InsightlyException("Loading " + entity + " failed", ex.getCause());
+        }
+    }
+
+    private Future<Object> fetchByIds(final InsightlyEntity entity, final LongSet ids) throws InterruptedException {
+        return fetch(entity.getPath() + "?ids=" + ids.toIdsParameter(), new Callable<Object>() {
+            @Override
+            public Object call() throws InsightlyException {
+                return insightly.queryByIds(InsightlyQuery.from(entity), ids);
+            }
+        });
+    }
+
+    private Future<Object> fetchRecord(final String path) throws InterruptedException {
+        return fetch(path, new Callable<Object>() {
+            @Override
+            public Object call() throws InsightlyException {
+                try {
+                    return insightly.getRequest(path).asJSONObject();
+                } catch (InsightlyException ex) {
+                    if (ex.hasResponse() && ex.getResponse().getStatus() == 404) {
+                        return null;
+                    }
+                    throw ex;
+                }
+            }
+        });
+    }
+
+    private Future<Object> fetchChildren(final String path) throws InterruptedException {
+        return fetch(path, new Callable<Object>() {
+            @Override
+            public Object call() throws InsightlyException {
+                try {
+                    return insightly.getRequest(path).asJSONArray();
+                } catch (InsightlyException ex) {
+                    // the parent does not exist
+                    if (ex.hasResponse() && ex.getResponse().getStatus() == 404) {
+                        return null;
+                    }
+                    throw ex;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a request, or joins the identical request already in flight
+     */
+    private Future<Object> fetch(final String key, Callable<Object> call) throws InterruptedException {
+        Future<Object> existing = inFlight.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        permits.acquire();
+        FutureTask<Object> task = new FutureTask<Object>(call) {
+            @Override
+            protected void done() {
+                inFlight.remove(key, this);
+                permits.release();
+            }
+        };
+        existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            permits.release();
+            return existing;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // completes the task for requests that joined it, and returns the permit
+            task.cancel(false);
+            throw ex;
+        }
+        return task;
+    }
+
+    private final Insightly insightly;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, Future<Object>> inFlight = new ConcurrentHashMap<String, Future<Object>>();
+}
@@ -0,0 +1,628 @@
+package com.insightly;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Compressed bitmap of record IDs, organised like a Roaring bitmap.
+ * </p>
+ * <p>
+ * <p>
+ * IDs are grouped by their upper 48 bits into chunks of 65536 consecutive values. A sparse chunk stores its
+ * members as a sorted {@code char[]} of the lower 16 bits (2 bytes per ID); once a chunk holds more than
+ * {@value #ARRAY_MAX} IDs it switches to a fixed 8 KB bitmap. Insightly assigns IDs sequentially, so most chunks of
+ * a large entity are dense and a million IDs take a few hundred KB. Membership tests, {@link #or(IdBitmap)},
+ * {@link #and(IdBitmap)} and {@link #andNot(IdBitmap)} work chunk by chunk, and two bitmap chunks are combined a
+ * 64-bit word at a time, so comparing millions of IDs takes milliseconds.
+ * </p>
+ * <p>
+ * <p>
+ * {@link Insightly#findDeleted(InsightlyEntity, IdBitmap, int, java.util.concurrent.ExecutorService)} uses it to detect deleted records:
+ * <pre>
+ * {@code
+ * IdBitmap local = new IdBitmap();
+ * for (...) {
+ *     local.add(contactId);
+ * }
+ * IdBitmap deleted = i.findDeleted(InsightlyEntity.CONTACTS, local, 8, executor);
+ * }
+ * </pre>
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+public final class IdBitmap {
+
+    public IdBitmap() {
+        this(new long[4], new Container[4], 0);
+    }
+
+    private IdBitmap(long[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    public static IdBitmap of(long... ids) {
+        IdBitmap bitmap = new IdBitmap();
+        bitmap.addAll(ids);
+        return bitmap;
+    }
+
+    public static IdBitmap of(LongSet ids) {
+        IdBitmap bitmap = new IdBitmap();
+        for (int i = 0; i < ids.size(); i++) {
+            bitmap.add(ids.get(i));
+        }
+        return bitmap;
+    }
+
+    public void add(long id) {
+        long key = id >>> 16;
+        char low = (char) id;
+        // IDs mostly arrive in ascending order, so check the last chunk first
+        int index = size > 0 && keys[size - 1] == key ? size - 1 : find(key);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, key, new ArrayContainer());
+        }
+        containers[index] = containers[index].add(low);
+    }
+
+    public void addAll(long... ids) {
+        for (long id : ids) {
+            add(id);
+        }
+    }
+
+    public boolean contains(long id) {
+        int index = find(id >>> 16);
+        return index >= 0 && containers[index].contains((char) id);
+    }
+
+    /**
+     * Number of IDs in the bitmap
+     */
+    public long getCardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Smallest ID in the bitmap
+     *
+     * @throws IllegalStateException if the bitmap is empty
+     */
+    public long first() {
+        if (size == 0) {
+            throw new IllegalStateException("Bitmap is empty");
+        }
+        return keys[0] << 16 | containers[0].first();
+    }
+
+    /**
+     * Largest ID in the bitmap
+     *
+     * @throws IllegalStateException if the bitmap is empty
+     */
+    public long last() {
+        if (size == 0) {
+            throw new IllegalStateException("Bitmap is empty");
+        }
+        return keys[size - 1] << 16 | containers[size - 1].last();
+    }
+
+    /**
+     * IDs in either bitmap
+     */
+    public IdBitmap or(IdBitmap other) {
+        IdBitmap result = new IdBitmap(new long[size + other.size], new Container[size + other.size], 0);
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && compare(keys[i], other.keys[j]) < 0)) {
+                result.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || compare(keys[i], other.keys[j]) > 0) {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.append(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * IDs in both bitmaps
+     */
+    public IdBitmap and(IdBitmap other) {
+        int capacity = Math.min(size, other.size);
+        IdBitmap result = new IdBitmap(new long[capacity], new Container[capacity], 0);
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            int order = compare(keys[i], other.keys[j]);
+            if (order < 0) {
+                i++;
+            } else if (order > 0) {
+                j++;
+            } else {
+                result.append(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * IDs in this bitmap that are not in the other one, e.g. local IDs missing remotely
+     */
+    public IdBitmap andNot(IdBitmap other) {
+        IdBitmap result = new IdBitmap(new long[size], new Container[size], 0);
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && compare(other.keys[j], keys[i]) < 0) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                result.append(keys[i], containers[i].andNot(other.containers[j]));
+            } else {
+                result.append(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the IDs in ascending order
+     */
+    public long[] toArray() {
+        long cardinality = getCardinality();
+        if (cardinality > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many IDs for an array: " + cardinality);
+        }
+        long[] ids = new long[(int) cardinality];
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            position = containers[i].toArray(keys[i] << 16, ids, position);
+        }
+        return ids;
+    }
+
+    public LongSet toLongSet() {
+        return LongSet.of(toArray());
+    }
+
+    /**
+     * Approximate heap used by the bitmap, in bytes
+     */
+    public long getSizeInBytes() {
+        long bytes = 16 + keys.length * 8L + containers.length * 4L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IdBitmap)) {
+            return false;
+        }
+        IdBitmap other = (IdBitmap) o;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != other.keys[i] || !containers[i].sameAs(other.containers[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + (int) (keys[i] ^ (keys[i] >>> 32));
+            hash = 31 * hash + containers[i].cardinality();
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "IdBitmap[cardinality=" + getCardinality() + ", chunks=" + size + "]";
+    }
+
+    /**
+     * Keys are upper 48 bits shifted down, so they are ordered as unsigned values; negative IDs sort last
+     */
+    private static int compare(long a, long b) {
+        return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+    }
+
+    private int find(long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compare(keys[middle], key);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insert(int index, long key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(4, size * 2));
+            containers = Arrays.copyOf(containers, Math.max(4, size * 2));
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void append(long key, Container container) {
+        if (container.cardinality() > 0) {
+            insert(size, key, container);
+        }
+    }
+
+    static final int ARRAY_MAX = 4096;
+
+    private abstract static class Container {
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract char first();
+
+        abstract char last();
+
+        abstract Container copy();
+
+        abstract Container or(Container other);
+
+        abstract Container and(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract int toArray(long high, long[] ids, int position);
+
+        abstract long sizeInBytes();
+
+        boolean sameAs(Container other) {
+            if (cardinality() != other.cardinality()) {
+                return false;
+            }
+            return and(other).cardinality() == cardinality();
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = cardinality > 0 && values[cardinality - 1] < value
+                    ? -(cardinality + 1) : Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        char first() {
+            return values[0];
+        }
+
+        @Override
+        char last() {
+            return values[cardinality - 1];
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer array = (ArrayContainer) other;
+            char[] merged = new char[cardinality + array.cardinality];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < cardinality && j < array.cardinality) {
+                char a = values[i];
+                char b = array.values[j];
+                if (a < b) {
+                    merged[n++] = a;
+                    i++;
+                } else if (a > b) {
+                    merged[n++] = b;
+                    j++;
+                } else {
+                    merged[n++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                merged[n++] = values[i++];
+            }
+            while (j < array.cardinality) {
+                merged[n++] = array.values[j++];
+            }
+            ArrayContainer result = new ArrayContainer(merged, n);
+            return n > ARRAY_MAX ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] common = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    common[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(common, n);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] remaining = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    remaining[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(remaining, n);
+        }
+
+        @Override
+        int toArray(long high, long[] ids, int position) {
+            for (int i = 0; i < cardinality; i++) {
+                ids[position++] = high | values[i];
+            }
+            return position;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + values.length * 2L;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        private char[] values;
+        private int cardinality;
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        BitmapContainer() {
+            this(new long[1024], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            long word = words[value >>> 6];
+            if ((word & bit) == 0) {
+                words[value >>> 6] = word | bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        char first() {
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != 0) {
+                    return (char) (i * 64 + Long.numberOfTrailingZeros(words[i]));
+                }
+            }
+            throw new IllegalStateException("Empty container");
+        }
+
+        @Override
+        char last() {
+            for (int i = words.length - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return (char) (i * 64 + 63 - Long.numberOfLeadingZeros(words[i]));
+                }
+            }
+            throw new IllegalStateException("Empty container");
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = new BitmapContainer(words.clone(), cardinality);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    result.add(array.values[i]);
+                }
+                return result;
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] |= otherWords[i];
+                count += Long.bitCount(result.words[i]);
+            }
+            result.cardinality = count;
+            return result;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            long[] common = new long[words.length];
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                common[i] = words[i] & otherWords[i];
+                count += Long.bitCount(common[i]);
+            }
+            return new BitmapContainer(common, count).compact();
+        }
+
+        @Override
+        Container andNot(Container other) {
+            BitmapContainer result = new BitmapContainer(words.clone(), cardinality);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    char value = array.values[i];
+                    long bit = 1L << value;
+                    if ((result.words[value >>> 6] & bit) != 0) {
+                        result.words[value >>> 6] &= ~bit;
+                        result.cardinality--;
+                    }
+                }
+                return result.compact();
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] &= ~otherWords[i];
+                count += Long.bitCount(result.words[i]);
+            }
+            result.cardinality = count;
+            return result.compact();
+        }
+
+        @Override
+        int toArray(long high, long[] ids, int position) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    ids[position++] = high | (i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return position;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + words.length * 8L;
+        }
+
+        /**
+         * Converts back to an array container once sparse enough
+         */
+        private Container compact() {
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+
+        private final long[] words;
+        private int cardinality;
+    }
+
+    private long[] keys;
+    private Container[] containers;
+    private int size;
+}
@@ -0,0 +1,46 @@
+package com.insightly;
+
+/**
+ * <p>
+ * Outcome of a {@link BulkImport}.
+ * </p>
+ */
+public class ImportResult {
+
+    ImportResult(long imported, long duplicates, long rejected) {
+        this.imported = imported;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Number of records written
+     */
+    public long getImportedCount() {
+        return imported;
+    }
+
+    /**
+     * Number of records skipped because a record with the same email or domain already existed,
+     * on the server or earlier in the input
+     */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Number of records that could not be read or were refused by the server; they are listed in the error file
+     */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportResult[imported=" + imported + ", duplicates=" + duplicates + ", rejected=" + rejected + "]";
+    }
+
+    private final long imported;
+    private final long duplicates;
+    private final long rejected;
+}
@@ -3,10 +3,20 @@ package com.insightly;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>
@@ -111,6 +121,22 @@ import java.util.Map;
  * </p>
  * <p>
  * <p>
+ * Contacts, leads and organisations also take an {@code ids} option: a comma separated {@code String}, a {@code List} of numbers, a {@code long[]} or a {@link LongSet}.
+ * It is sent as a single query parameter, so long ID lists can exceed the URL length the server accepts; use {@link #queryByIds(InsightlyQuery, LongSet)}, which splits them across requests.
+ * </p>
+ * <p>
+ * <p>
+ * Alternatively, build the query with {@link InsightlyQuery}, which validates field names, operators and values before anything is sent, and quotes values for you:
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * InsightlyQuery.Compiled query = InsightlyQuery.from(InsightlyEntity.CONTACTS).eq("FIRST_NAME", "Brian").top(200).compile();
+ * contacts = i.query(query);
+ * }
+ * </pre>
+ * <p>
+ * <p>
  * These methods will raise an exception if the lookup fails, or return a list of dictionaries if successful, or an empty list if no records were found.
  * </p>
  * <p>
@@ -129,7 +155,10 @@ import java.util.Map;
  * <h2>IMAGE AND FILE ATTACHMENT MANAGEMENT</h2>
  * <p>
  * <p>
- * The API calls to manage images and file attachments have not yet been implemented in the Java library. However you can access these directly via our REST API
+ * Images and file attachments are streamed to and from files on disk, so large files are never held in memory.
+ * Downloads resume from the end of a partially downloaded file. e.g.
+ * {@code i.addFileAttachment(InsightlyEntity.CONTACTS, 123456, Paths.get("contract.pdf"), "application/pdf")}
+ * and {@code i.downloadFileAttachment(654321, Paths.get("contract.pdf"))}
  * </p>
  * <p>
  * <h2>ISSUES TO BE AWARE OF</h2>
@@ -144,11 +173,114 @@ import java.util.Map;
  * If you are working with large recordsets, we strongly recommend that you use ODATA functions, such as top and skip to page through recordsets rather than trying to fetch entire
  * recordsets in one go. This both improves client/server communication, but also minimizes memory requirements on your end.
  * </p>
+ * <p>
+ * <p>
+ * For full scans, prefer {@link #keysetPager(InsightlyQuery, long)} over skip: it pages by record ID, so deep pages are as fast as the first one and concurrent changes
+ * do not cause duplicated or missed records.
+ * </p>
  */
 public class Insightly {
 
     public Insightly(String apikey) {
+        this(apikey, null);
+    }
+
+    /**
+     * Creates a client talking to a different API host, e.g. a proxy or a test stub
+     *
+     * @param apikey  User's api key
+     * @param baseUrl scheme and host of the API, e.g. {@code http://localhost:8080}, or {@code null} for {@link #BASE_URL}
+     */
+    public Insightly(String apikey, String baseUrl) {
         this.apikey = apikey;
+        this.baseUrl = baseUrl;
+        this.interceptors = new CopyOnWriteArrayList<InsightlyInterceptor>();
+        this.customFieldSchema = new AtomicReference<CustomFieldSchema>();
+    }
+
+    private Insightly(Insightly other) {
+        this.apikey = other.apikey;
+        this.baseUrl = other.baseUrl;
+        this.interceptors = other.interceptors;
+        this.priority = other.priority;
+        this.timeouts = other.timeouts;
+        this.deadline = other.deadline;
+        this.strings = other.strings;
+        this.customFieldSchema = other.customFieldSchema;
+    }
+
+    /**
+     * Returns a view of this client whose requests carry the given priority.
+     * The view shares the API key and interceptors with this client.
+     *
+     * @param priority priority used by a {@link PriorityScheduler} to order requests
+     */
+    public Insightly withPriority(InsightlyRequest.Priority priority) {
+        Insightly view = new Insightly(this);
+        view.priority = priority;
+        return view;
+    }
+
+    public InsightlyRequest.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the connect, read and overall timeouts used for every request of this client
+     *
+     * @param timeouts request timeouts
+     */
+    public Insightly setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+        return this;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Decodes responses through the given string table, so that the keys and short values repeated across
+     * many records share one instance each. Use it when holding large recordsets in memory; see {@link StringTable}.
+     *
+     * @param strings string table, may be shared between clients, or {@code null} to decode normally
+     */
+    public Insightly setStringTable(StringTable strings) {
+        this.strings = strings;
+        return this;
+    }
+
+    public StringTable getStringTable() {
+        return strings;
+    }
+
+    /**
+     * Returns a view of this client whose requests must all complete by the given deadline.
+     * Pass the view to bulk operations to bound the whole operation; requests still running when the deadline
+     * passes are aborted and fail with an {@link InsightlyException} for which
+     * {@link InsightlyException#isDeadlineExceeded()} is true.
+     *
+     * @param deadline deadline shared by all requests of the view
+     */
+    public Insightly withDeadline(Deadline deadline) {
+        Insightly view = new Insightly(this);
+        view.deadline = deadline.min(this.deadline);
+        return view;
+    }
+
+    /**
+     * Adds an interceptor applied to every request made by this client.
+     * Interceptors run in the order they were added.
+     *
+     * @param interceptor interceptor to add
+     */
+    public Insightly addInterceptor(InsightlyInterceptor interceptor) {
+        interceptors.add(interceptor);
+        return this;
+    }
+
+    public boolean removeInterceptor(InsightlyInterceptor interceptor) {
+        return interceptors.remove(interceptor);
     }
 
     public JSONObject addContact(JSONObject contact) throws InsightlyException {
@@ -156,72 +288,103 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (contact.has("CONTACT_ID") && (contact.getLong("CONTACT_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(contact).asJSONObject();
     }
 
     public void deleteContact(long contact_id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Contacts/" + contact_id).asString();
+        DELETE("/v2.1/Contacts/" + contact_id).asString();
     }
 
     public JSONArray getContacts(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Contacts");
+        InsightlyRequest request = GET("/v2.1/Contacts");
         buildContactQuery(options, request);
         return buildODataQuery(request, options).asJSONArray();
     }
 
+    /**
+     * Same as {@link #getContacts(Map)}, but the contacts decode their fields on first access
+     */
+    public LazyRecords getContactsLazy(Map<String, Object> options) throws InsightlyException {
+        InsightlyRequest request = GET("/v2.1/Contacts");
+        buildContactQuery(options, request);
+        return LazyRecords.parse(buildODataQuery(request, options).asString(), strings);
+    }
+
     public JSONObject getContact(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Contacts/" + id).asJSONObject();
+        return GET("/v2.1/Contacts/" + id).asJSONObject();
     }
 
     public JSONArray getContactEmails(long contact_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Contacts/" + contact_id + "/Emails").asJSONArray();
+        return GET("/v2.1/Contacts/" + contact_id + "/Emails").asJSONArray();
     }
 
     public JSONArray getContactNotes(long contact_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Contacts/" + contact_id + "/Notes").asJSONArray();
+        return GET("/v2.1/Contacts/" + contact_id + "/Notes").asJSONArray();
     }
 
     public JSONArray getContactTasks(long contact_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Contacts/" + contact_id + "/Tasks").asJSONArray();
+        return GET("/v2.1/Contacts/" + contact_id + "/Tasks").asJSONArray();
     }
 
     public JSONArray getCountries() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Countries").asJSONArray();
+        return GET("/v2.1/Countries").asJSONArray();
     }
 
     public JSONArray getCurrencies() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Currencies").asJSONArray();
+        return GET("/v2.1/Currencies").asJSONArray();
     }
 
     public JSONArray getCustomFields() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/CustomFields").asJSONArray();
+        return GET("/v2.1/CustomFields").asJSONArray();
     }
 
     public JSONObject getCustomField(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/CustomFields/" + id).asJSONObject();
+        return GET("/v2.1/CustomFields/" + id).asJSONObject();
+    }
+
+    /**
+     * Returns the custom field definitions for decoding the custom fields of records, loading them on first use.
+     * The schema is shared with views of this client. See {@link CustomFieldSchema}.
+     */
+    public CustomFieldSchema getCustomFieldSchema() throws InsightlyException {
+        CustomFieldSchema schema = customFieldSchema.get();
+        if (schema == null) {
+            customFieldSchema.compareAndSet(null, CustomFieldSchema.of(getCustomFields()));
+            schema = customFieldSchema.get();
+        }
+        return schema;
+    }
+
+    /**
+     * Loads the custom field definitions again, after custom fields were added or changed
+     */
+    public CustomFieldSchema reloadCustomFieldSchema() throws InsightlyException {
+        CustomFieldSchema schema = CustomFieldSchema.of(getCustomFields());
+        customFieldSchema.set(schema);
+        return schema;
     }
 
     public JSONArray getEmails(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Emails");
+        InsightlyRequest request = GET("/v2.1/Emails");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getEmail(long id) throws InsightlyException {
 
-        return InsightlyRequest.GET(apikey, "/v2.1/Emails/" + id).asJSONObject();
+        return GET("/v2.1/Emails/" + id).asJSONObject();
 
     }
 
     public void deleteEmail(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Emails/" + id).asString();
+        DELETE("/v2.1/Emails/" + id).asString();
     }
 
     public JSONArray getEmailComments(long email_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Emails/" + email_id + "/Comments").asJSONArray();
+        return GET("/v2.1/Emails/" + email_id + "/Comments").asJSONArray();
     }
 
     public JSONObject addCommentToEmail(long email_id, String body, long owner_user_id) throws InsightlyException {
@@ -230,13 +393,13 @@ public class Insightly {
         data.put("OWNER_USER_ID", owner_user_id);
 
 
-        return InsightlyRequest.POST(apikey, "/v2.1/Emails/" + email_id + "/Comments")
+        return POST("/v2.1/Emails/" + email_id + "/Comments")
                 .body(data)
                 .asJSONObject();
     }
 
     public JSONObject getEvent(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Events/" + id).asJSONObject();
+        return GET("/v2.1/Events/" + id).asJSONObject();
     }
 
     public JSONArray getEvents() throws InsightlyException {
@@ -244,81 +407,81 @@ public class Insightly {
     }
 
     public JSONArray getEvents(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Events");
+        InsightlyRequest request = GET("/v2.1/Events");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject addEvent(JSONObject event) throws InsightlyException {
         InsightlyRequest request = null;
         if (event.has("EVENT_ID") && (event.getLong("EVENT_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, "/v2.1/Events");
+            request = PUT("/v2.1/Events");
         } else {
-            request = InsightlyRequest.POST(apikey, "/v2.1/Events");
+            request = POST("/v2.1/Events");
         }
         return request.body(event).asJSONObject();
     }
 
     public void deleteEvent(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Events/" + id).asString();
+        DELETE("/v2.1/Events/" + id).asString();
     }
 
     public JSONArray getFileCategories() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/FileCategories").asJSONArray();
+        return GET("/v2.1/FileCategories").asJSONArray();
     }
 
     public JSONObject getFileCategory(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/FileCategories/" + id).asJSONObject();
+        return GET("/v2.1/FileCategories/" + id).asJSONObject();
     }
 
     public JSONObject addFileCategory(JSONObject category) throws InsightlyException {
         InsightlyRequest request = null;
         if (category.has("CATEGORY_ID") && (category.getLong("CATEGORY_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, "/v2.1/FileCategories");
+            request = PUT("/v2.1/FileCategories");
         } else {
-            request = InsightlyRequest.POST(apikey, "/v2.1/FileCategories");
+            request = POST("/v2.1/FileCategories");
         }
         return request.body(category).asJSONObject();
     }
 
     public void deleteFileCategory(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/FileCategories/" + id);
+        DELETE("/v2.1/FileCategories/" + id);
     }
 
     public JSONArray getLeads(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Leads");
+        InsightlyRequest request = GET("/v2.1/Leads");
         buildLeadsQuery(options, request);
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getLead(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Leads/" + id).asJSONObject();
+        return GET("/v2.1/Leads/" + id).asJSONObject();
     }
 
     public JSONObject addLead(JSONObject lead) throws InsightlyException {
         String url_path = "/v2.1/Leads";
         InsightlyRequest request = null;
         if (lead.has("LEAD_ID") && (lead.getLong("LEAD_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(lead).asJSONObject();
     }
 
     public void deleteLead(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Leads/" + id).asString();
+        DELETE("/v2.1/Leads/" + id).asString();
     }
 
     public JSONArray getLeadEmails(long lead_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Leads/" + lead_id + "/Emails").asJSONArray();
+        return GET("/v2.1/Leads/" + lead_id + "/Emails").asJSONArray();
     }
 
     public JSONArray getLeadNotes(long lead_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Leads/" + lead_id + "/Notes").asJSONArray();
+        return GET("/v2.1/Leads/" + lead_id + "/Notes").asJSONArray();
     }
 
     public JSONArray getLeadTasks(long lead_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Leads/" + lead_id + "/Tasks").asJSONArray();
+        return GET("/v2.1/Leads/" + lead_id + "/Tasks").asJSONArray();
     }
 
     public JSONArray getNotes() throws InsightlyException {
@@ -326,32 +489,32 @@ public class Insightly {
     }
 
     public JSONArray getNotes(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Notes");
+        InsightlyRequest request = GET("/v2.1/Notes");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getNote(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Notes/" + id).asJSONObject();
+        return GET("/v2.1/Notes/" + id).asJSONObject();
     }
 
     public JSONObject addNote(JSONObject note) throws InsightlyException {
         InsightlyRequest request = null;
 
         if (note.has("NOTE_ID") && (note.getLong("NOTE_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, "/v2.1/Notes");
+            request = PUT("/v2.1/Notes");
         } else {
-            request = InsightlyRequest.POST(apikey, "/v2.1/Notes");
+            request = POST("/v2.1/Notes");
         }
         return request.body(note).asJSONObject();
     }
 
     public JSONArray getNoteComments(long note_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Notes/" + note_id + "/Comments").asJSONArray();
+        return GET("/v2.1/Notes/" + note_id + "/Comments").asJSONArray();
     }
 
     public JSONObject addNoteComment(long note_id, JSONObject comment) throws InsightlyException {
         String url_path = "/v2.1/Notes/" + note_id + "/Comments";
-        return InsightlyRequest.POST(apikey, url_path).body(comment).asJSONObject();
+        return POST(url_path).body(comment).asJSONObject();
     }
 
     public JSONArray getOpportunities() throws InsightlyException {
@@ -359,16 +522,16 @@ public class Insightly {
     }
 
     public JSONArray getOpportunities(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Opportunities");
+        InsightlyRequest request = GET("/v2.1/Opportunities");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getOpportunity(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Opportunities/" + id).asJSONObject();
+        return GET("/v2.1/Opportunities/" + id).asJSONObject();
     }
 
     public void deleteNote(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Notes/" + id).asString();
+        DELETE("/v2.1/Notes/" + id).asString();
     }
 
     public JSONObject addOpportunity(JSONObject opportunity) throws InsightlyException {
@@ -376,58 +539,58 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (opportunity.has("OPPORTUNITY_ID") && (opportunity.getLong("OPPORTUNITY_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(opportunity).asJSONObject();
     }
 
     public void deleteOpportunity(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Opportunities/" + id).asString();
+        DELETE("/v2.1/Opportunities/" + id).asString();
     }
 
     public JSONArray getOpportunityCategories() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/OpportunityCategories").asJSONArray();
+        return GET("/v2.1/OpportunityCategories").asJSONArray();
     }
 
     public JSONObject getOpportunityCategory(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/OpportunityCategries/" + id).asJSONObject();
+        return GET("/v2.1/OpportunityCategries/" + id).asJSONObject();
     }
 
     public JSONObject addOpportunityCategory(JSONObject category) throws InsightlyException {
         String url_path = "/v2.1/OpportunityCategories";
         InsightlyRequest request;
         if (category.has("OPPORTUNITY_ID") && (category.getLong("OPPORTUNITY_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(category).asJSONObject();
     }
 
     public void deleteOpportunityCategory(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/OpportunityCategories/" + id).asString();
+        DELETE("/v2.1/OpportunityCategories/" + id).asString();
     }
 
     public JSONArray getOpportunityEmails(long opportunity_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Opportunities/" + opportunity_id + "/Emails").asJSONArray();
+        return GET("/v2.1/Opportunities/" + opportunity_id + "/Emails").asJSONArray();
     }
 
     public JSONArray getOpportunityNotes(long opportunity_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Opportunities/" + opportunity_id + "/Notes").asJSONArray();
+        return GET("/v2.1/Opportunities/" + opportunity_id + "/Notes").asJSONArray();
     }
 
     public JSONArray getOpportunityStateHistory(long opportunity_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Opportunities/" + opportunity_id + "/StateHistory").asJSONArray();
+        return GET("/v2.1/Opportunities/" + opportunity_id + "/StateHistory").asJSONArray();
     }
 
     public JSONArray getOpportunityStateReasons() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/OpportunityStateReasons").asJSONArray();
+        return GET("/v2.1/OpportunityStateReasons").asJSONArray();
     }
 
     public JSONArray getOpportunityTasks(long opportunity_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Opportunities/" + opportunity_id + "/Tasks").asJSONArray();
+        return GET("/v2.1/Opportunities/" + opportunity_id + "/Tasks").asJSONArray();
     }
 
     public JSONArray getOrganizations() throws InsightlyException {
@@ -435,13 +598,13 @@ public class Insightly {
     }
 
     public JSONArray getOrganizations(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Organisations");
+        InsightlyRequest request = GET("/v2.1/Organisations");
         buildOrganizationQuery(options, request);
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getOrganization(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Organisations/" + id).asJSONObject();
+        return GET("/v2.1/Organisations/" + id).asJSONObject();
     }
 
     public JSONObject addOrganization(JSONObject organization) throws InsightlyException {
@@ -449,47 +612,47 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (organization.has("ORGANISATION_ID") && (organization.getLong("ORGANISATION_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(organization).asJSONObject();
     }
 
     public void deleteOrganization(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Organisations/" + id).asString();
+        DELETE("/v2.1/Organisations/" + id).asString();
     }
 
     public JSONArray getOrganizationEmails(long organization_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Organisations/" + organization_id + "/Emails").asJSONArray();
+        return GET("/v2.1/Organisations/" + organization_id + "/Emails").asJSONArray();
     }
 
     public JSONArray getOrganizationNotes(long organization_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Organisations/" + organization_id + "/Notes").asJSONArray();
+        return GET("/v2.1/Organisations/" + organization_id + "/Notes").asJSONArray();
     }
 
     public JSONArray getOrganizationTasks(long organization_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Organisations/" + organization_id + "/Tasks").asJSONArray();
+        return GET("/v2.1/Organisations/" + organization_id + "/Tasks").asJSONArray();
     }
 
     public JSONArray getPipelines() throws InsightlyException {
 
-        return InsightlyRequest.GET(apikey, "/v2.1/Pipelines").asJSONArray();
+        return GET("/v2.1/Pipelines").asJSONArray();
 
     }
 
     public JSONObject getPipeline(long id) throws InsightlyException {
 
-        return InsightlyRequest.GET(apikey, "/v2.1/Pipelines/" + id).asJSONObject();
+        return GET("/v2.1/Pipelines/" + id).asJSONObject();
 
     }
 
     public JSONArray getPipelineStages() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/PipelineStages").asJSONArray();
+        return GET("/v2.1/PipelineStages").asJSONArray();
     }
 
     public JSONObject getPipelineStage(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/PipelineStages/" + id).asJSONObject();
+        return GET("/v2.1/PipelineStages/" + id).asJSONObject();
     }
 
     public JSONArray getProjects() throws InsightlyException {
@@ -497,12 +660,12 @@ public class Insightly {
     }
 
     public JSONArray getProjects(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Projects");
+        InsightlyRequest request = GET("/v2.1/Projects");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getProject(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Projects/" + id).asJSONObject();
+        return GET("/v2.1/Projects/" + id).asJSONObject();
     }
 
     public JSONObject addProject(JSONObject project) throws InsightlyException {
@@ -510,58 +673,58 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (project.has("PROJECT_ID") && (project.getLong("PROJECT_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(project).asJSONObject();
     }
 
     public void deleteProject(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Projects/" + id).asString();
+        DELETE("/v2.1/Projects/" + id).asString();
     }
 
     public JSONArray getProjectEmails(long project_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Projects/" + project_id + "/Emails").asJSONArray();
+        return GET("/v2.1/Projects/" + project_id + "/Emails").asJSONArray();
     }
 
     public JSONArray getProjectNotes(long project_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Projects/" + project_id + "/Notes").asJSONArray();
+        return GET("/v2.1/Projects/" + project_id + "/Notes").asJSONArray();
     }
 
     public JSONArray getProjectTasks(long project_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Projects/" + project_id + "/Tasks").asJSONArray();
+        return GET("/v2.1/Projects/" + project_id + "/Tasks").asJSONArray();
     }
 
     public JSONArray getProjectCategories() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/ProjectCategories").asJSONArray();
+        return GET("/v2.1/ProjectCategories").asJSONArray();
     }
 
     public JSONObject getProjectCategory(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/ProjectCategories/" + id).asJSONObject();
+        return GET("/v2.1/ProjectCategories/" + id).asJSONObject();
     }
 
     public JSONObject addProjectCategory(JSONObject category) throws InsightlyException {
         String url_path = "/v2.1/ProjectCategories";
         InsightlyRequest request = null;
         if (category.has("CATEGORY_ID") && (category.getLong("CATEGORY_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(category).asJSONObject();
     }
 
     public void deleteProjectCategory(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/ProjectCategories/" + id).asString();
+        DELETE("/v2.1/ProjectCategories/" + id).asString();
     }
 
     public JSONArray getRelationships() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Relationships").asJSONArray();
+        return GET("/v2.1/Relationships").asJSONArray();
     }
 
     public JSONArray getTags(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Tags/" + id).asJSONArray();
+        return GET("/v2.1/Tags/" + id).asJSONArray();
     }
 
     public JSONArray getTasks() throws InsightlyException {
@@ -569,12 +732,12 @@ public class Insightly {
     }
 
     public JSONArray getTasks(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Tasks");
+        InsightlyRequest request = GET("/v2.1/Tasks");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getTask(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Tasks/" + id).asJSONObject();
+        return GET("/v2.1/Tasks/" + id).asJSONObject();
     }
 
     public JSONObject addTask(JSONObject task) throws InsightlyException {
@@ -582,19 +745,19 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (task.has("TASK_ID") && (task.getLong("TASK_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(task).asJSONObject();
     }
 
     public void deleteTask(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Tasks/" + id).asString();
+        DELETE("/v2.1/Tasks/" + id).asString();
     }
 
     public JSONArray getTaskComments(long task_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Tasks/" + task_id + "/Comments").asJSONArray();
+        return GET("/v2.1/Tasks/" + task_id + "/Comments").asJSONArray();
     }
 
     public JSONObject addTaskComment(long task_id, JSONObject comment) throws InsightlyException {
@@ -602,9 +765,9 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (comment.has("COMMENT_ID") && (comment.getLong("COMMENT_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(comment).asJSONObject();
     }
@@ -614,12 +777,12 @@ public class Insightly {
     }
 
     public JSONArray getTeams(Map<String, Object> options) throws InsightlyException {
-        InsightlyRequest request = InsightlyRequest.GET(apikey, "/v2.1/Teams");
+        InsightlyRequest request = GET("/v2.1/Teams");
         return buildODataQuery(request, options).asJSONArray();
     }
 
     public JSONObject getTeam(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Teams/" + id).asJSONObject();
+        return GET("/v2.1/Teams/" + id).asJSONObject();
     }
 
     public JSONObject addTeam(JSONObject team) throws InsightlyException {
@@ -627,46 +790,403 @@ public class Insightly {
         InsightlyRequest request = null;
 
         if (team.has("TEAM_ID") && (team.getLong("TEAM_ID") > 0)) {
-            request = InsightlyRequest.PUT(apikey, url_path);
+            request = PUT(url_path);
         } else {
-            request = InsightlyRequest.POST(apikey, url_path);
+            request = POST(url_path);
         }
         return request.body(team).asJSONObject();
     }
 
     public void deleteTeam(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/Teams/" + id).asString();
+        DELETE("/v2.1/Teams/" + id).asString();
     }
 
     public JSONArray getTeamMembers(long team_id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/TeamMembers")
+        return GET("/v2.1/TeamMembers")
                 .queryParam("teamid", team_id)
                 .asJSONArray();
 
     }
 
     public JSONObject getTeamMember(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/TeamMembers/" + id).asJSONObject();
+        return GET("/v2.1/TeamMembers/" + id).asJSONObject();
     }
 
     public JSONObject addTeamMember(JSONObject team_member) throws InsightlyException {
-        return InsightlyRequest.POST(apikey, "/v2.1/TeamMembers").body(team_member).asJSONObject();
+        return POST("/v2.1/TeamMembers").body(team_member).asJSONObject();
     }
 
     public void deleteTeamMember(long id) throws InsightlyException {
-        InsightlyRequest.DELETE(apikey, "/v2.1/TeamMembers/" + id).asString();
+        DELETE("/v2.1/TeamMembers/" + id).asString();
     }
 
     public JSONObject updateTeamMember(JSONObject team_member) throws InsightlyException {
-        return InsightlyRequest.PUT(apikey, "/v2.1/TeamMembers").body(team_member).asJSONObject();
+        return PUT("/v2.1/TeamMembers").body(team_member).asJSONObject();
+    }
+
+    /**
+     * Runs a typed OData query against the query's entity endpoint
+     *
+     * @param query query built with {@link InsightlyQuery}
+     */
+    public JSONArray query(InsightlyQuery query) throws InsightlyException {
+        return query(query.compile());
+    }
+
+    /**
+     * Runs a precompiled OData query against the query's entity endpoint
+     *
+     * @param query compiled query, may be reused across calls
+     */
+    public JSONArray query(InsightlyQuery.Compiled query) throws InsightlyException {
+        return queryRequest(query).asJSONArray();
+    }
+
+    /**
+     * Fetches the records with the given IDs, matching the query's filters. The IDs are split across as many
+     * requests as needed to keep each URL below a safe length, see {@link LongSet#toIdsParameters(int)}.
+     *
+     * @param query base query on an entity supporting the {@code ids} parameter; must not specify top or skip
+     * @param ids   record IDs to fetch
+     */
+    public JSONArray queryByIds(InsightlyQuery query, LongSet ids) throws InsightlyException {
+        if (!query.getEntity().supportsParam("ids")) {
+            throw new IllegalArgumentException(query.getEntity() + " does not support the ids parameter");
+        }
+        if (query.hasPaging()) {
+            throw new IllegalArgumentException("queryByIds does not support top or skip");
+        }
+        JSONArray records = new JSONArray();
+        for (String chunk : ids.toIdsParameters(LongSet.DEFAULT_MAX_IDS_LENGTH)) {
+            JSONArray page = query(query.copy().idsParameter(chunk));
+            for (int i = 0; i < page.length(); i++) {
+                records.put(page.get(i));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Fetches the IDs of all records matching the query, page by page, into a compressed bitmap.
+     * Only the ID field of each record is decoded.
+     *
+     * @param query    base query; must not specify ordering, top or skip
+     * @param pageSize number of records per page
+     */
+    public IdBitmap getRemoteIds(InsightlyQuery query, long pageSize) throws InsightlyException {
+        IdBitmap ids = new IdBitmap();
+        KeysetPager pager = keysetPager(query, pageSize);
+        while (pager.hasNext()) {
+            ids.addAll(pager.nextIds());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the local IDs that no longer exist on the server, i.e. records deleted since they were synced.
+     * Only remote IDs within the range of the local ones can matter, so just that range is scanned,
+     * split into partitions fetched concurrently; see {@link IdBitmap} and {@link PartitionedScan#fetchIds}.
+     *
+     * @param entity     entity the IDs belong to
+     * @param local      IDs of the locally held records
+     * @param partitions number of ID ranges scanned concurrently
+     * @param executor   executor running one task per partition
+     */
+    public IdBitmap findDeleted(InsightlyEntity entity, IdBitmap local, int partitions, ExecutorService executor)
+            throws InsightlyException {
+        if (local.isEmpty()) {
+            return new IdBitmap();
+        }
+        IdBitmap remote = PartitionedScan.byId(this, InsightlyQuery.from(entity), local.first(), local.last(), partitions)
+                .fetchIds(executor);
+        return local.andNot(remote);
+    }
+
+    /**
+     * Creates or updates a record unless it is unchanged since it was last read or written,
+     * see {@link ChangeTracker}. Records with an ID are updated, others are created.
+     *
+     * @param entity  entity the record belongs to
+     * @param record  record to write
+     * @param tracker tracker holding the last known server state; updated after the write
+     * @return the record as stored on the server, or {@code null} if it was unchanged and not written
+     */
+    public JSONObject upsert(InsightlyEntity entity, JSONObject record, ChangeTracker tracker) throws InsightlyException {
+        if (tracker.isUnchanged(entity, record)) {
+            return null;
+        }
+        JSONObject stored = write(entity, record);
+        tracker.written(entity, record, stored);
+        return stored;
+    }
+
+    /**
+     * Updates the record if it has an ID, creates it otherwise
+     */
+    JSONObject write(InsightlyEntity entity, JSONObject record) throws InsightlyException {
+        InsightlyRequest request = record.optLong(entity.getIdField(), 0) > 0 ? PUT(entity.getPath()) : POST(entity.getPath());
+        return request.body(record).asJSONObject();
+    }
+
+    void delete(InsightlyEntity entity, long id) throws InsightlyException {
+        DELETE(entity.getPath() + "/" + id).asString();
+    }
+
+    /**
+     * Upserts every record of the list, skipping those unchanged since they were last read or written
+     *
+     * @param entity  entity the records belong to
+     * @param records records to write
+     * @param tracker tracker holding the last known server state; updated after each write
+     * @return the records written and the IDs of those skipped
+     */
+    public UpsertResult upsertAll(InsightlyEntity entity, JSONArray records, ChangeTracker tracker) throws InsightlyException {
+        JSONArray written = new JSONArray();
+        LongSet.Builder skipped = LongSet.builder();
+        for (int i = 0; i < records.length(); i++) {
+            JSONObject record = records.getJSONObject(i);
+            JSONObject stored = upsert(entity, record, tracker);
+            if (stored == null) {
+                skipped.add(record.getLong(entity.getIdField()));
+            } else {
+                written.put(stored);
+            }
+        }
+        return new UpsertResult(written, skipped.build());
+    }
+
+    public JSONArray getContactsByIds(LongSet ids) throws InsightlyException {
+        return queryByIds(InsightlyQuery.from(InsightlyEntity.CONTACTS), ids);
+    }
+
+    public JSONArray getLeadsByIds(LongSet ids) throws InsightlyException {
+        return queryByIds(InsightlyQuery.from(InsightlyEntity.LEADS), ids);
+    }
+
+    public JSONArray getOrganizationsByIds(LongSet ids) throws InsightlyException {
+        return queryByIds(InsightlyQuery.from(InsightlyEntity.ORGANISATIONS), ids);
+    }
+
+    /**
+     * Runs a typed OData query and returns records that decode their fields on first access.
+     * See {@link LazyRecords}.
+     *
+     * @param query query built with {@link InsightlyQuery}
+     */
+    public LazyRecords queryLazy(InsightlyQuery query) throws InsightlyException {
+        return queryLazy(query.compile());
+    }
+
+    /**
+     * Runs a precompiled OData query and returns records that decode their fields on first access
+     *
+     * @param query compiled query, may be reused across calls
+     */
+    public LazyRecords queryLazy(InsightlyQuery.Compiled query) throws InsightlyException {
+        return LazyRecords.parse(queryRequest(query).asString(), strings);
+    }
+
+    InsightlyRequest queryRequest(InsightlyQuery.Compiled query) {
+        return GET(query.getEntity().getPath()).query(query);
+    }
+
+    InsightlyRequest getRequest(String path) {
+        return GET(path);
+    }
+
+    /**
+     * Creates a pager that scans the query's results in ID order using keyset pagination
+     * instead of {@code $skip}. See {@link KeysetPager}.
+     *
+     * @param query    base query; must not specify ordering, top or skip
+     * @param pageSize number of records per page
+     */
+    public KeysetPager keysetPager(InsightlyQuery query, long pageSize) {
+        return keysetPager(query, pageSize, 0);
+    }
+
+    /**
+     * Creates a keyset pager that resumes after the given record ID
+     *
+     * @param query      base query; must not specify ordering, top or skip
+     * @param pageSize   number of records per page
+     * @param lastSeenId only records with a greater ID are returned
+     */
+    public KeysetPager keysetPager(InsightlyQuery query, long pageSize, long lastSeenId) {
+        return new KeysetPager(this, query, pageSize, lastSeenId);
+    }
+
+    /**
+     * Creates a keyset pager that adapts the page size towards the target response time. See {@link AdaptivePager}.
+     *
+     * @param query               base query; must not specify ordering, top or skip
+     * @param targetLatencyMillis desired response time per page
+     */
+    public AdaptivePager adaptivePager(InsightlyQuery query, long targetLatencyMillis) {
+        return new AdaptivePager(this, query, targetLatencyMillis,
+                AdaptivePager.DEFAULT_MIN_PAGE_SIZE, AdaptivePager.DEFAULT_MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Publishes the results of a list query with backpressure. See {@link PagedPublisher}.
+     * Works with every list endpoint described by {@link InsightlyEntity}: contacts, leads, organisations,
+     * opportunities, projects, tasks, notes, emails, events and teams.
+     *
+     * @param query    base query; must not specify ordering, top or skip
+     * @param pageSize number of records fetched per request
+     * @param executor executor used to fetch pages and deliver records
+     */
+    public PagedPublisher publisher(InsightlyQuery query, long pageSize, Executor executor) {
+        return new PagedPublisher(this, query, pageSize, executor);
+    }
+
+    /**
+     * Fetches all events starting in {@code [from, to)}, splitting the range into partitions fetched concurrently
+     *
+     * @param partitions number of date partitions
+     * @param executor   executor running one task per partition
+     */
+    public JSONArray scanEvents(Date from, Date to, int partitions, ExecutorService executor) throws InsightlyException {
+        return PartitionedScan.byDate(this, InsightlyQuery.from(InsightlyEntity.EVENTS), "START_DATE_UTC", from, to, partitions)
+                .fetch(executor);
+    }
+
+    /**
+     * Fetches all tasks due in {@code [from, to)}, splitting the range into partitions fetched concurrently.
+     * Tasks without a due date are not returned.
+     *
+     * @param partitions number of date partitions
+     * @param executor   executor running one task per partition
+     */
+    public JSONArray scanTasks(Date from, Date to, int partitions, ExecutorService executor) throws InsightlyException {
+        return PartitionedScan.byDate(this, InsightlyQuery.from(InsightlyEntity.TASKS), "DUE_DATE", from, to, partitions)
+                .fetch(executor);
+    }
+
+    /**
+     * Fetches all emails dated in {@code [from, to)}, splitting the range into partitions fetched concurrently
+     *
+     * @param partitions number of date partitions
+     * @param executor   executor running one task per partition
+     */
+    public JSONArray scanEmails(Date from, Date to, int partitions, ExecutorService executor) throws InsightlyException {
+        return PartitionedScan.byDate(this, InsightlyQuery.from(InsightlyEntity.EMAILS), "EMAIL_DATE_UTC", from, to, partitions)
+                .fetch(executor);
+    }
+
+    /**
+     * Exports contacts, organisations, opportunities, projects, tasks, notes and events to compressed NDJSON files,
+     * resuming an earlier export into the same directory. See {@link AccountExport}.
+     *
+     * @param directory directory the files are written to
+     * @param executor  executor running one task per entity
+     * @return number of records exported per entity
+     */
+    public Map<InsightlyEntity, Long> exportAccount(Path directory, ExecutorService executor) throws InsightlyException {
+        return new AccountExport(this, directory).run(executor);
+    }
+
+    /**
+     * Attaches a file to a record, streaming it from disk
+     *
+     * @param entity      entity the record belongs to
+     * @param id          ID of the record
+     * @param file        file to attach; its name becomes the name of the attachment
+     * @param contentType MIME type of the file
+     * @return the file attachment created
+     */
+    public JSONObject addFileAttachment(InsightlyEntity entity, long id, Path file, String contentType)
+            throws InsightlyException {
+        return POST(entity.getPath() + "/" + id + "/FileAttachments/" + encodeFileName(file))
+                .uploadMultipart(file, contentType)
+                .asJSONObject();
+    }
+
+    /**
+     * Downloads a file attachment into a file, continuing a partial download left by an earlier attempt
+     *
+     * @param file_attachment_id ID of the file attachment
+     * @param target             file to write
+     * @return size of the downloaded file
+     */
+    public long downloadFileAttachment(long file_attachment_id, Path target) throws InsightlyException {
+        return GET("/v2.1/FileAttachments/" + file_attachment_id).asFile(target, true);
+    }
+
+    /**
+     * Sets the image of a record, streaming it from disk
+     *
+     * @param entity entity the record belongs to
+     * @param id     ID of the record
+     * @param image  image file; its MIME type is guessed from the file
+     */
+    public void uploadImage(InsightlyEntity entity, long id, Path image) throws InsightlyException {
+        String contentType;
+        try {
+            contentType = Files.probeContentType(image);
+        } catch (IOException ex) {
+            throw new InsightlyException(ex.getMessage(), ex);
+        }
+        PUT(entity.getPath() + "/" + id + "/Image/" + encodeFileName(image))
+                .upload(image, contentType != null ? contentType : "application/octet-stream")
+                .asString();
+    }
+
+    /**
+     * Downloads the image of a record into a file, continuing a partial download left by an earlier attempt
+     *
+     * @param entity entity the record belongs to
+     * @param id     ID of the record
+     * @param target file to write
+     * @return size of the downloaded file
+     */
+    public long downloadImage(InsightlyEntity entity, long id, Path target) throws InsightlyException {
+        return GET(entity.getPath() + "/" + id + "/Image").asFile(target, true);
+    }
+
+    public void deleteImage(InsightlyEntity entity, long id) throws InsightlyException {
+        DELETE(entity.getPath() + "/" + id + "/Image").asString();
+    }
+
+    private static String encodeFileName(Path file) {
+        try {
+            // URLEncoder encodes for forms; a path segment needs %20 for spaces
+            return URLEncoder.encode(file.getFileName().toString(), "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
     }
 
     public JSONArray getUsers() throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Users").asJSONArray();
+        return GET("/v2.1/Users").asJSONArray();
     }
 
     public JSONObject getUser(long id) throws InsightlyException {
-        return InsightlyRequest.GET(apikey, "/v2.1/Users/" + id).asJSONObject();
+        return GET("/v2.1/Users/" + id).asJSONObject();
+    }
+
+    private InsightlyRequest configure(InsightlyRequest request) {
+        return request.priority(priority)
+                .timeouts(timeouts)
+                .deadline(deadline)
+                .strings(strings)
+                .intercept(interceptors);
+    }
+
+    private InsightlyRequest GET(String path) {
+        return configure(new InsightlyRequest(baseUrl, apikey, path, "GET"));
+    }
+
+    private InsightlyRequest PUT(String path) {
+        return configure(new InsightlyRequest(baseUrl, apikey, path, "PUT"));
+    }
+
+    private InsightlyRequest POST(String path) {
+        return configure(new InsightlyRequest(baseUrl, apikey, path, "POST"));
+    }
+
+    private InsightlyRequest DELETE(String path) {
+        return configure(new InsightlyRequest(baseUrl, apikey, path, "DELETE"));
     }
 
     private InsightlyRequest buildContactQuery(Map<String, Object> options, InsightlyRequest request) {
@@ -708,15 +1228,19 @@ public class Insightly {
             if (options.get("ids") instanceof String) {
                 request.queryParam("ids", (String) options.get("ids"));
             } else if (options.get("ids") instanceof List) {
-                List<Long> ids = (List<Long>) options.get("ids");
-                if (ids.size() > 0) {
-                    StringBuilder acc = new StringBuilder();
-                    for (Long id : ids) {
-                        acc.append(id);
-                        acc.append(",");
+                List<?> list = (List<?>) options.get("ids");
+                LongSet.Builder ids = LongSet.builder(list.size());
+                for (Object id : list) {
+                    if (!(id instanceof Number)) {
+                        throw new IllegalArgumentException("ids must be numbers, got " + id);
                     }
-                    request.queryParam("ids", acc.toString());
+                    ids.add(((Number) id).longValue());
                 }
+                addIDsParameter(ids.build(), request);
+            } else if (options.get("ids") instanceof long[]) {
+                addIDsParameter(LongSet.of((long[]) options.get("ids")), request);
+            } else if (options.get("ids") instanceof LongSet) {
+                addIDsParameter((LongSet) options.get("ids"), request);
             }
         }
     }
@@ -760,6 +1284,12 @@ public class Insightly {
         return request;
     }
 
+    private void addIDsParameter(LongSet ids, InsightlyRequest request) {
+        if (!ids.isEmpty()) {
+            request.queryParam("ids", ids.toIdsParameter());
+        }
+    }
+
     private void addEmailParameter(Map<String, Object> options, InsightlyRequest request) {
         addStringParameter(options, "email", request);
     }
@@ -836,7 +1366,7 @@ public class Insightly {
         try {
             JSONArray contacts;
             options = new HashMap<String, Object>();
-            options.put("order_by", "DATE_UPDATED_UTL desc");
+            options.put("orderby", "DATE_UPDATED_UTC desc");
             options.put("top", top);
             contacts = this.getContacts(options);
             contact = contacts.getJSONObject(0);
@@ -1382,4 +1912,11 @@ public class Insightly {
     public final String BASE_URL = "https://api.insight.ly";
 
     private String apikey;
+    private final String baseUrl;
+    private final List<InsightlyInterceptor> interceptors;
+    private InsightlyRequest.Priority priority = InsightlyRequest.Priority.INTERACTIVE;
+    private volatile Timeouts timeouts = Timeouts.DEFAULT;
+    private Deadline deadline;
+    private volatile StringTable strings;
+    private final AtomicReference<CustomFieldSchema> customFieldSchema;
 }
@@ -0,0 +1,10 @@
+package com.insightly;
+
+/**
+ * A call against an {@link Insightly} client, run by an {@link InsightlyExecutor}
+ *
+ * @param <T> result type
+ */
+public interface InsightlyCall<T> {
+    T call(Insightly insightly) throws InsightlyException;
+}
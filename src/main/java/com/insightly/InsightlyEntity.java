@@ -0,0 +1,302 @@
+package com.insightly;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Describes the searchable Insightly entities:
+ * their REST path, the name of their ID field,
+ * the fields that can be used in OData filters and ordering
+ * and the endpoint specific query parameters they accept.
+ * </p>
+ * <p>
+ * <p>
+ * Used by {@link InsightlyQuery} to validate queries before they are sent to the server.
+ * </p>
+ */
+public enum InsightlyEntity {
+    CONTACTS("/v2.1/Contacts", "CONTACT_ID",
+            params("email", "tag", "ids"),
+            number("CONTACT_ID"),
+            string("SALUTATION"),
+            string("FIRST_NAME"),
+            string("LAST_NAME"),
+            string("BACKGROUND"),
+            string("IMAGE_URL"),
+            number("DEFAULT_LINKED_ORGANISATION"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID"),
+            string("ASSISTANT_NAME")),
+
+    LEADS("/v2.1/Leads", "LEAD_ID",
+            params("email", "tag", "ids", "includeConverted"),
+            number("LEAD_ID"),
+            string("SALUTATION"),
+            string("TITLE"),
+            string("FIRST_NAME"),
+            string("LAST_NAME"),
+            string("ORGANIZATION_NAME"),
+            string("PHONE_NUMBER"),
+            string("MOBILE_PHONE_NUMBER"),
+            string("FAX_NUMBER"),
+            string("EMAIL_ADDRESS"),
+            string("WEBSITE_URL"),
+            number("OWNER_USER_ID"),
+            number("RESPONSIBLE_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            bool("CONVERTED"),
+            date("CONVERTED_DATE_UTC"),
+            number("CONVERTED_CONTACT_ID"),
+            number("CONVERTED_ORGANIZATION_ID"),
+            number("CONVERTED_OPPORTUNITY_ID"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID"),
+            string("INDUSTRY"),
+            number("LEAD_STATUS_ID"),
+            number("LEAD_SOURCE_ID"),
+            number("EMPLOYEE_COUNT"),
+            number("LEAD_RATING"),
+            string("ADDRESS_STREET"),
+            string("ADDRESS_CITY"),
+            string("ADDRESS_STATE"),
+            string("ADDRESS_POSTCODE"),
+            string("ADDRESS_COUNTRY")),
+
+    ORGANISATIONS("/v2.1/Organisations", "ORGANISATION_ID",
+            params("domain", "tag", "ids"),
+            number("ORGANISATION_ID"),
+            string("ORGANISATION_NAME"),
+            string("BACKGROUND"),
+            string("IMAGE_URL"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID")),
+
+    OPPORTUNITIES("/v2.1/Opportunities", "OPPORTUNITY_ID",
+            params(),
+            number("OPPORTUNITY_ID"),
+            string("OPPORTUNITY_NAME"),
+            string("OPPORTUNITY_DETAILS"),
+            number("PROBABILITY"),
+            string("BID_CURRENCY"),
+            number("BID_AMOUNT"),
+            string("BID_TYPE"),
+            number("BID_DURATION"),
+            date("FORECAST_CLOSE_DATE"),
+            date("ACTUAL_CLOSE_DATE"),
+            number("CATEGORY_ID"),
+            number("PIPELINE_ID"),
+            number("STAGE_ID"),
+            string("OPPORTUNITY_STATE"),
+            string("IMAGE_URL"),
+            number("RESPONSIBLE_USER_ID"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID")),
+
+    PROJECTS("/v2.1/Projects", "PROJECT_ID",
+            params(),
+            number("PROJECT_ID"),
+            string("PROJECT_NAME"),
+            string("STATUS"),
+            string("PROJECT_DETAILS"),
+            number("OPPORTUNITY_ID"),
+            date("STARTED_DATE"),
+            date("COMPLETED_DATE"),
+            string("IMAGE_URL"),
+            number("RESPONSIBLE_USER_ID"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            number("CATEGORY_ID"),
+            number("PIPELINE_ID"),
+            number("STAGE_ID"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID")),
+
+    TASKS("/v2.1/Tasks", "TASK_ID",
+            params(),
+            number("TASK_ID"),
+            string("TITLE"),
+            number("CATEGORY_ID"),
+            date("DUE_DATE"),
+            date("COMPLETED_DATE_UTC"),
+            bool("PUBLICLY_VISIBLE"),
+            bool("COMPLETED"),
+            number("PROJECT_ID"),
+            string("DETAILS"),
+            string("STATUS"),
+            number("PRIORITY"),
+            number("PERCENT_COMPLETE"),
+            date("START_DATE"),
+            number("ASSIGNED_BY_USER_ID"),
+            number("PARENT_TASK_ID"),
+            number("RESPONSIBLE_USER_ID"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            number("OPPORTUNITY_ID"),
+            number("MILESTONE_ID"),
+            number("EMAIL_ID")),
+
+    NOTES("/v2.1/Notes", "NOTE_ID",
+            params(),
+            number("NOTE_ID"),
+            string("TITLE"),
+            string("BODY"),
+            number("LINK_SUBJECT_ID"),
+            string("LINK_SUBJECT_TYPE"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID")),
+
+    EMAILS("/v2.1/Emails", "EMAIL_ID",
+            params(),
+            number("EMAIL_ID"),
+            string("EMAIL_FROM"),
+            string("SUBJECT"),
+            date("EMAIL_DATE_UTC"),
+            string("FORMAT"),
+            number("SIZE"),
+            number("OWNER_USER_ID"),
+            date("DATE_CREATED_UTC"),
+            string("VISIBLE_TO"),
+            number("VISIBLE_TEAM_ID")),
+
+    EVENTS("/v2.1/Events", "EVENT_ID",
+            params(),
+            number("EVENT_ID"),
+            string("TITLE"),
+            string("LOCATION"),
+            date("START_DATE_UTC"),
+            date("END_DATE_UTC"),
+            bool("ALL_DAY"),
+            string("DETAILS"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"),
+            date("REMINDER_DATE_UTC"),
+            bool("REMINDER_SENT"),
+            number("OWNER_USER_ID"),
+            bool("PUBLICLY_VISIBLE")),
+
+    TEAMS("/v2.1/Teams", "TEAM_ID",
+            params(),
+            number("TEAM_ID"),
+            string("TEAM_NAME"),
+            bool("ANONYMOUS_TEAM"),
+            date("DATE_CREATED_UTC"),
+            date("DATE_UPDATED_UTC"));
+
+    /**
+     * Type of an entity field, used to validate filter values.
+     */
+    public enum FieldType {
+        STRING, NUMBER, DATE, BOOLEAN
+    }
+
+    InsightlyEntity(String path, String idField, Set<String> params, Field... fields) {
+        this.path = path;
+        this.idField = idField;
+        this.params = params;
+        Map<String, FieldType> map = new LinkedHashMap<String, FieldType>();
+        for (Field field : fields) {
+            map.put(field.name, field.type);
+        }
+        this.fields = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Path portion of the URL for this entity's collection
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Name of the field holding the entity's ID, e.g. {@code CONTACT_ID}
+     */
+    public String getIdField() {
+        return idField;
+    }
+
+    /**
+     * Fields of this entity that can be filtered and ordered on
+     */
+    public Map<String, FieldType> getFields() {
+        return fields;
+    }
+
+    public boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
+    /**
+     * Returns the type of the named field
+     *
+     * @throws IllegalArgumentException if the entity has no such field
+     */
+    public FieldType getFieldType(String name) {
+        FieldType type = fields.get(name);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown field " + name + " for " + this);
+        }
+        return type;
+    }
+
+    /**
+     * Whether the endpoint accepts the given non-OData query parameter (email, tag, ids, ...)
+     */
+    public boolean supportsParam(String name) {
+        return params.contains(name);
+    }
+
+    private static Set<String> params(String... names) {
+        return Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(names)));
+    }
+
+    private static Field string(String name) {
+        return new Field(name, FieldType.STRING);
+    }
+
+    private static Field number(String name) {
+        return new Field(name, FieldType.NUMBER);
+    }
+
+    private static Field date(String name) {
+        return new Field(name, FieldType.DATE);
+    }
+
+    private static Field bool(String name) {
+        return new Field(name, FieldType.BOOLEAN);
+    }
+
+    private static class Field {
+        Field(String name, FieldType type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        final String name;
+        final FieldType type;
+    }
+
+    private final String path;
+    private final String idField;
+    private final Set<String> params;
+    private final Map<String, FieldType> fields;
+}
@@ -3,6 +3,11 @@ package com.insightly;
 import com.mashape.unirest.http.HttpResponse;
 import org.apache.http.conn.ConnectTimeoutException;
 
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeoutException;
+
 public class InsightlyException extends Exception {
     private HttpResponse response;
 
@@ -34,8 +39,26 @@ public class InsightlyException extends Exception {
                 (response.getStatus() > 499 && response.getStatus() < 600);
     }
 
+    public boolean isRateLimited() {
+        return hasResponse() && response.getStatus() == 429;
+    }
+
+    public boolean isDeadlineExceeded() {
+        return getCause() instanceof TimeoutException;
+    }
+
+    /**
+     * Whether the server could not be reached at all, so the request was certainly not processed
+     */
     public boolean isUnreachable() {
-        return getCause() instanceof ConnectTimeoutException;
+        // the Unirest path wraps the network failure in a UnirestException, so look through the whole chain
+        for (Throwable cause = getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectTimeoutException || cause instanceof ConnectException
+                    || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
     }
 }
 
@@ -0,0 +1,145 @@
+package com.insightly;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Runs blocking {@link Insightly} calls concurrently.
+ * </p>
+ * <p>
+ * <p>
+ * In {@link Mode#VIRTUAL_THREADS} mode every call runs on its own virtual thread, so thousands of calls can wait
+ * on the network at once without a thread pool to size. Virtual threads need Java 21 or later; this library
+ * still runs on Java 8, so they are looked up at runtime and {@link #isVirtualThreadSupported()} tells whether
+ * they are available. The request path of this library uses {@link java.util.concurrent.locks.ReentrantLock}
+ * rather than {@code synchronized}, so waiting requests do not pin their carrier threads.
+ * Remember to raise the Unirest connection pool limits ({@code Unirest.setConcurrency}) to match the concurrency
+ * you expect.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * InsightlyExecutor executor = InsightlyExecutor.create(i, InsightlyExecutor.Mode.VIRTUAL_THREADS, 0);
+ * Future<JSONObject> contact = executor.submit(new InsightlyCall<JSONObject>() {
+ *     public JSONObject call(Insightly insightly) throws InsightlyException {
+ *         return insightly.getContact(42);
+ *     }
+ * });
+ * }
+ * </pre>
+ * <p>
+ * <p>
+ * {@code InsightlyBenchmark}, in the test sources, compares both modes against a local stub server.
+ * </p>
+ */
+public class InsightlyExecutor {
+
+    public enum Mode {
+        /**
+         * A fixed pool of platform threads
+         */
+        PLATFORM_THREADS,
+        /**
+         * One virtual thread per call (Java 21+)
+         */
+        VIRTUAL_THREADS
+    }
+
+    /**
+     * Whether the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * @param insightly       client the calls are made with
+     * @param mode            threading mode
+     * @param platformThreads pool size for {@link Mode#PLATFORM_THREADS}, ignored for virtual threads
+     * @throws UnsupportedOperationException if virtual threads are requested but not supported by the JVM
+     */
+    public static InsightlyExecutor create(Insightly insightly, Mode mode, int platformThreads) {
+        return new InsightlyExecutor(insightly, newExecutorService(mode, platformThreads));
+    }
+
+    /**
+     * Creates an executor service for the given mode
+     *
+     * @throws UnsupportedOperationException if virtual threads are requested but not supported by the JVM
+     */
+    public static ExecutorService newExecutorService(Mode mode, int platformThreads) {
+        if (mode == Mode.VIRTUAL_THREADS) {
+            if (VIRTUAL_THREAD_FACTORY == null) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+            }
+            try {
+                return (ExecutorService) VIRTUAL_THREAD_FACTORY.invoke(null);
+            } catch (Exception ex) {
+                throw new UnsupportedOperationException("Cannot create virtual thread executor", ex);
+            }
+        }
+        if (platformThreads < 1) {
+            throw new IllegalArgumentException("platformThreads must be at least 1, was " + platformThreads);
+        }
+        return Executors.newFixedThreadPool(platformThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "insightly-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+            private final AtomicInteger counter = new AtomicInteger();
+        });
+    }
+
+    public InsightlyExecutor(Insightly insightly, ExecutorService executor) {
+        this.insightly = insightly;
+        this.executor = executor;
+    }
+
+    /**
+     * Submits a call. {@link Future#get()} throws an {@link java.util.concurrent.ExecutionException}
+     * wrapping the {@link InsightlyException} if the call fails.
+     */
+    public <T> Future<T> submit(final InsightlyCall<T> call) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws InsightlyException {
+                return call.call(insightly);
+            }
+        });
+    }
+
+    public ExecutorService getExecutorService() {
+        return executor;
+    }
+
+    /**
+     * Stops accepting calls and waits for running calls to finish
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private static Method findVirtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static final Method VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+    private final Insightly insightly;
+    private final ExecutorService executor;
+}
@@ -0,0 +1,34 @@
+package com.insightly;
+
+/**
+ * <p>
+ * Hook around sending an {@link InsightlyRequest}.
+ * </p>
+ * <p>
+ * <p>
+ * An interceptor either calls {@link Chain#proceed(InsightlyRequest)} to pass the request on to the next interceptor
+ * (and finally to the server), or returns a response body of its own.
+ * Interceptors registered with {@link Insightly#addInterceptor(InsightlyInterceptor)} apply to every call made by that client.
+ * </p>
+ */
+public interface InsightlyInterceptor {
+
+    /**
+     * @param request request about to be sent
+     * @param chain   remainder of the interceptor chain
+     * @return response body
+     */
+    String intercept(InsightlyRequest request, Chain chain) throws InsightlyException;
+
+    /**
+     * Remainder of an interceptor chain
+     */
+    interface Chain {
+        /**
+         * Passes the request on to the next interceptor, or sends it to the server
+         *
+         * @return response body
+         */
+        String proceed(InsightlyRequest request) throws InsightlyException;
+    }
+}
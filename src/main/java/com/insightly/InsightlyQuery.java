@@ -0,0 +1,436 @@
+package com.insightly;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Typed builder for OData search queries.
+ * </p>
+ * <p>
+ * <p>
+ * Unlike the {@code Map<String, Object>} options accepted by the {@code get*} methods of {@link Insightly},
+ * every field name, operator and value is validated against the {@link InsightlyEntity} description
+ * as soon as it is added, so a malformed query fails with an {@link IllegalArgumentException}
+ * instead of a 400 (bad request) from the server.
+ * </p>
+ * <p>
+ * <p>
+ * A finished query is turned into an immutable {@link Compiled} query with {@link #compile()}.
+ * The query string is rendered once and the compiled query can be reused for any number of requests:
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * InsightlyQuery.Compiled query = InsightlyQuery.from(InsightlyEntity.CONTACTS)
+ *         .eq("FIRST_NAME", "Brian")
+ *         .orderByDesc("DATE_UPDATED_UTC")
+ *         .top(200)
+ *         .compile();
+ * JSONArray contacts = i.query(query);
+ * }
+ * </pre>
+ */
+public class InsightlyQuery {
+
+    /**
+     * OData comparison operators
+     */
+    public enum Operator {
+        EQ("eq"), NE("ne"), GT("gt"), GE("ge"), LT("lt"), LE("le");
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        boolean isOrdering() {
+            return this != EQ && this != NE;
+        }
+
+        private final String symbol;
+    }
+
+    /**
+     * Starts a query against the given entity
+     */
+    public static InsightlyQuery from(InsightlyEntity entity) {
+        return new InsightlyQuery(entity);
+    }
+
+    protected InsightlyQuery(InsightlyEntity entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("entity must not be null");
+        }
+        this.entity = entity;
+    }
+
+    /**
+     * Returns a copy of this query that can be modified independently
+     */
+    public InsightlyQuery copy() {
+        InsightlyQuery copy = new InsightlyQuery(entity);
+        copy.filters.addAll(filters);
+        copy.orderBy.addAll(orderBy);
+        copy.params.putAll(params);
+        copy.top = top;
+        copy.skip = skip;
+        return copy;
+    }
+
+    /**
+     * Adds a filter condition. Conditions are combined with {@code and}.
+     *
+     * @param field    name of an entity field, e.g. {@code FIRST_NAME}
+     * @param operator comparison operator
+     * @param value    {@link String}, {@link Number}, {@link Boolean} or {@link Date}
+     *                 matching the field type, or {@code null} for {@code EQ}/{@code NE}
+     */
+    public InsightlyQuery where(String field, Operator operator, Object value) {
+        if (operator == null) {
+            throw new IllegalArgumentException("operator must not be null");
+        }
+        InsightlyEntity.FieldType type = entity.getFieldType(field);
+        if (value == null && operator.isOrdering()) {
+            throw new IllegalArgumentException("Cannot compare " + field + " with null using " + operator.getSymbol());
+        }
+        if (type == InsightlyEntity.FieldType.BOOLEAN && operator.isOrdering()) {
+            throw new IllegalArgumentException("Boolean field " + field + " only supports eq and ne");
+        }
+        filters.add(field + " " + operator.getSymbol() + " " + literal(field, type, value));
+        return this;
+    }
+
+    public InsightlyQuery eq(String field, Object value) {
+        return where(field, Operator.EQ, value);
+    }
+
+    public InsightlyQuery ne(String field, Object value) {
+        return where(field, Operator.NE, value);
+    }
+
+    public InsightlyQuery gt(String field, Object value) {
+        return where(field, Operator.GT, value);
+    }
+
+    public InsightlyQuery ge(String field, Object value) {
+        return where(field, Operator.GE, value);
+    }
+
+    public InsightlyQuery lt(String field, Object value) {
+        return where(field, Operator.LT, value);
+    }
+
+    public InsightlyQuery le(String field, Object value) {
+        return where(field, Operator.LE, value);
+    }
+
+    /**
+     * Orders results by the given field, ascending
+     */
+    public InsightlyQuery orderBy(String field) {
+        entity.getFieldType(field);
+        orderBy.add(field);
+        return this;
+    }
+
+    /**
+     * Orders results by the given field, descending
+     */
+    public InsightlyQuery orderByDesc(String field) {
+        entity.getFieldType(field);
+        orderBy.add(field + " desc");
+        return this;
+    }
+
+    /**
+     * Limits the number of returned records
+     *
+     * @param top maximum number of records, must be positive
+     */
+    public InsightlyQuery top(long top) {
+        if (top <= 0) {
+            throw new IllegalArgumentException("top must be positive, was " + top);
+        }
+        this.top = top;
+        return this;
+    }
+
+    /**
+     * Skips the given number of records
+     *
+     * @param skip number of records to skip, must not be negative
+     */
+    public InsightlyQuery skip(long skip) {
+        if (skip < 0) {
+            throw new IllegalArgumentException("skip must not be negative, was " + skip);
+        }
+        this.skip = skip;
+        return this;
+    }
+
+    /**
+     * Pages through results: equivalent to {@code top(pageSize).skip(page * pageSize)}
+     *
+     * @param page     zero based page number
+     * @param pageSize number of records per page
+     */
+    public InsightlyQuery page(long page, long pageSize) {
+        if (page < 0) {
+            throw new IllegalArgumentException("page must not be negative, was " + page);
+        }
+        top(pageSize);
+        return skip(page * pageSize);
+    }
+
+    public InsightlyQuery email(String email) {
+        return param("email", email);
+    }
+
+    public InsightlyQuery tag(String tag) {
+        return param("tag", tag);
+    }
+
+    public InsightlyQuery domain(String domain) {
+        return param("domain", domain);
+    }
+
+    public InsightlyQuery includeConverted(boolean includeConverted) {
+        return param("includeConverted", String.valueOf(includeConverted));
+    }
+
+    /**
+     * Restricts results to the given record IDs
+     */
+    public InsightlyQuery ids(long... ids) {
+        return ids(LongSet.of(ids));
+    }
+
+    /**
+     * Restricts results to the given record IDs. The IDs are sent in a single request;
+     * use {@link Insightly#queryByIds(InsightlyQuery, LongSet)} for sets too large for one URL.
+     */
+    public InsightlyQuery ids(LongSet ids) {
+        if (ids.isEmpty()) {
+            throw new IllegalArgumentException("ids must not be empty");
+        }
+        return param("ids", ids.toIdsParameter());
+    }
+
+    InsightlyQuery idsParameter(String ids) {
+        return param("ids", ids);
+    }
+
+    /**
+     * Validates the query and renders it into an immutable, reusable {@link Compiled} query
+     */
+    public Compiled compile() {
+        Map<String, String> rendered = new LinkedHashMap<String, String>(params);
+        if (top > 0) {
+            rendered.put("$top", String.valueOf(top));
+        }
+        if (skip > 0) {
+            rendered.put("$skip", String.valueOf(skip));
+        }
+        if (!orderBy.isEmpty()) {
+            rendered.put("$orderby", join(orderBy, ","));
+        }
+        if (!filters.isEmpty()) {
+            rendered.put("$filter", join(filters, " and "));
+        }
+        return new Compiled(entity, rendered);
+    }
+
+    public InsightlyEntity getEntity() {
+        return entity;
+    }
+
+    boolean hasOrdering() {
+        return !orderBy.isEmpty();
+    }
+
+    boolean hasPaging() {
+        return top > 0 || skip > 0;
+    }
+
+    private InsightlyQuery param(String name, String value) {
+        if (!entity.supportsParam(name)) {
+            throw new IllegalArgumentException(entity + " does not support the " + name + " parameter");
+        }
+        if (value == null || value.length() == 0) {
+            throw new IllegalArgumentException(name + " must not be empty");
+        }
+        params.put(name, value);
+        return this;
+    }
+
+    private static String literal(String field, InsightlyEntity.FieldType type, Object value) {
+        if (value == null) {
+            return "null";
+        }
+        switch (type) {
+            case STRING:
+                if (!(value instanceof String)) {
+                    throw typeMismatch(field, type, value);
+                }
+                return "'" + ((String) value).replace("'", "''") + "'";
+            case NUMBER:
+                if (!(value instanceof Number)) {
+                    throw typeMismatch(field, type, value);
+                }
+                double d = ((Number) value).doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    throw new IllegalArgumentException("Invalid number for " + field + ": " + value);
+                }
+                return formatNumber((Number) value);
+            case BOOLEAN:
+                if (!(value instanceof Boolean)) {
+                    throw typeMismatch(field, type, value);
+                }
+                return value.toString();
+            case DATE:
+                if (value instanceof Date) {
+                    return "DateTime'" + formatDate((Date) value) + "'";
+                } else if (value instanceof String && DATE_PATTERN.matcher((String) value).matches()) {
+                    return "DateTime'" + ((String) value).replace(' ', 'T') + "'";
+                }
+                throw typeMismatch(field, type, value);
+            default:
+                throw new IllegalStateException("Unhandled field type " + type);
+        }
+    }
+
+    /**
+     * Renders a number without an exponent, which OData does not accept
+     */
+    static String formatNumber(Number value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicLong || value instanceof AtomicInteger) {
+            return Long.toString(value.longValue());
+        }
+        if (value instanceof BigInteger) {
+            return value.toString();
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return new BigDecimal(value.toString()).toPlainString();
+    }
+
+    private static IllegalArgumentException typeMismatch(String field, InsightlyEntity.FieldType type, Object value) {
+        return new IllegalArgumentException("Field " + field + " expects a " + type + " value, got "
+                + value.getClass().getSimpleName() + " " + value);
+    }
+
+    static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder acc = new StringBuilder();
+        for (Iterator<String> iterator = parts.iterator(); iterator.hasNext(); ) {
+            acc.append(iterator.next());
+            if (iterator.hasNext()) {
+                acc.append(separator);
+            }
+        }
+        return acc.toString();
+    }
+
+    /**
+     * <p>
+     * A validated query, rendered once into its query parameters and query string.
+     * </p>
+     * <p>
+     * <p>
+     * Instances are immutable and may be shared between threads and reused for any number of requests.
+     * </p>
+     */
+    public static final class Compiled {
+        Compiled(InsightlyEntity entity, Map<String, String> params) {
+            this.entity = entity;
+            this.params = Collections.unmodifiableMap(params);
+            this.queryString = render(params);
+        }
+
+        public InsightlyEntity getEntity() {
+            return entity;
+        }
+
+        /**
+         * Query parameters in the order they are sent
+         */
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        /**
+         * URL encoded query string, without the leading {@code ?}
+         */
+        public String getQueryString() {
+            return queryString;
+        }
+
+        /**
+         * Adds the query parameters to a request, as the query string rendered when the query was compiled
+         */
+        public InsightlyRequest applyTo(InsightlyRequest request) {
+            return request.rawQuery(queryString);
+        }
+
+        @Override
+        public String toString() {
+            return entity.getPath() + (queryString.length() > 0 ? "?" + queryString : "");
+        }
+
+        private static String render(Map<String, String> params) {
+            StringBuilder acc = new StringBuilder();
+            try {
+                for (Map.Entry<String, String> param : params.entrySet()) {
+                    if (acc.length() > 0) {
+                        acc.append('&');
+                    }
+                    acc.append(URLEncoder.encode(param.getKey(), "UTF-8"));
+                    acc.append('=');
+                    acc.append(URLEncoder.encode(param.getValue(), "UTF-8"));
+                }
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return acc.toString();
+        }
+
+        private final InsightlyEntity entity;
+        private final Map<String, String> params;
+        private final String queryString;
+    }
+
+    private static final Pattern DATE_PATTERN =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}([ T]\\d{2}:\\d{2}(:\\d{2})?)?");
+
+    private final InsightlyEntity entity;
+    private final List<String> filters = new ArrayList<String>();
+    private final List<String> orderBy = new ArrayList<String>();
+    private final Map<String, String> params = new LinkedHashMap<String, String>();
+    private long top;
+    private long skip;
+}
@@ -1,17 +1,50 @@
 package com.insightly;
 
 import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.http.options.Option;
+import com.mashape.unirest.http.options.Options;
 import com.mashape.unirest.request.HttpRequest;
 import com.mashape.unirest.request.HttpRequestWithBody;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>
@@ -51,6 +84,20 @@ import java.util.List;
 public class InsightlyRequest {
     public final String BASE_URL = "https://api.insight.ly";
 
+    /**
+     * Scheduling class of a request, see {@link PriorityScheduler}
+     */
+    public enum Priority {
+        /**
+         * User facing requests that someone is waiting for
+         */
+        INTERACTIVE,
+        /**
+         * Bulk work such as exports and synchronisation
+         */
+        BACKGROUND
+    }
+
     /**
      * <p>
      * Constructs a GET request
@@ -100,9 +147,19 @@ public class InsightlyRequest {
     }
 
     protected InsightlyRequest(String apikey, String path, String method) {
+        this(null, apikey, path, method);
+    }
+
+    /**
+     * @param baseUrl scheme and host of the API, or {@code null} for {@link #BASE_URL}
+     * @param apikey  User's api key
+     * @param path    Path portion of URL
+     * @param method  HTTP method
+     */
+    protected InsightlyRequest(String baseUrl, String apikey, String path, String method) {
         try {
             this.apikey = apikey;
-            this.url = new URIBuilder(BASE_URL + path);
+            this.url = new URIBuilder((baseUrl != null ? baseUrl : BASE_URL) + path);
             this.method = method;
         } catch (URISyntaxException ex) {
             throw new IllegalArgumentException("Invalid URL: " + ex.getMessage());
@@ -116,13 +173,18 @@ public class InsightlyRequest {
      * @return response from server
      */
     public JSONArray asJSONArray() throws InsightlyException {
-        try {
-            return verifyResponse(buildHttpRequest().asJson()).getBody().getArray();
-        } catch (UnirestException ex) {
-            throw new InsightlyException(ex.getMessage(), ex);
-        } catch (IOException e) {
-            throw new InsightlyException("Cannot build the request", e);
+        return decodeArray(execute(), strings);
+    }
+
+    static JSONArray decodeArray(String body, StringTable strings) {
+        if (strings == null) {
+            return new JsonNode(body).getArray();
+        }
+        Object value = JsonScanner.decode(body, strings);
+        if (value instanceof JSONArray) {
+            return (JSONArray) value;
         }
+        return new JSONArray().put(value);
     }
 
     /**
@@ -132,13 +194,11 @@ public class InsightlyRequest {
      * @return response from server
      */
     public JSONObject asJSONObject() throws InsightlyException {
-        try {
-            return verifyResponse(buildHttpRequest().asJson()).getBody().getObject();
-        } catch (UnirestException ex) {
-            throw new InsightlyException(ex.getMessage(), ex);
-        } catch (IOException e) {
-            throw new InsightlyException("Cannot build the request", e);
+        if (strings == null) {
+            return new JsonNode(execute()).getObject();
         }
+        Object value = JsonScanner.decode(execute(), strings);
+        return value instanceof JSONObject ? (JSONObject) value : null;
     }
 
     /**
@@ -148,6 +208,152 @@ public class InsightlyRequest {
      * @return response from server
      */
     public String asString() throws InsightlyException {
+        return execute();
+    }
+
+    /**
+     * Sends request to server and streams the response body into a file,
+     * without holding it in memory.
+     * When resuming, only the bytes beyond the current size of the file are requested;
+     * if the server ignores the range, the file is written again from the start.
+     * A failed transfer leaves the bytes received so far in the file, so it can be resumed.
+     *
+     * @param target file to write
+     * @param resume whether to continue an existing, partially downloaded file
+     * @return size of the downloaded file
+     */
+    public long asFile(Path target, boolean resume) throws InsightlyException {
+        this.download = target;
+        this.resume = resume;
+        execute();
+        try {
+            return Files.size(target);
+        } catch (IOException ex) {
+            throw new InsightlyException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Adds an interceptor that sees this request before it is sent.
+     * Interceptors run in the order they were added.
+     *
+     * @param interceptor interceptor to add
+     */
+    public InsightlyRequest intercept(InsightlyInterceptor interceptor) {
+        this.interceptors.add(interceptor);
+        return this;
+    }
+
+    /**
+     * Adds interceptors that see this request before it is sent
+     *
+     * @param interceptors interceptors to add, in order
+     */
+    public InsightlyRequest intercept(List<InsightlyInterceptor> interceptors) {
+        this.interceptors.addAll(interceptors);
+        return this;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getApikey() {
+        return apikey;
+    }
+
+    /**
+     * Full request URL, including query parameters
+     */
+    public String getUrl() {
+        return url();
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Whether the response is streamed into a file by {@link #asFile(Path, boolean)};
+     * such a request returns an empty response body to interceptors
+     */
+    public boolean isDownload() {
+        return download != null;
+    }
+
+    /**
+     * Sets the body of the request to the contents of a file, streamed from disk when the request is sent
+     *
+     * @param file        file to send
+     * @param contentType MIME type of the file
+     */
+    public InsightlyRequest upload(Path file, String contentType) {
+        this.upload = file;
+        this.uploadType = ContentType.create(contentType);
+        this.multipart = false;
+        return this;
+    }
+
+    /**
+     * Sets the body of the request to a {@code multipart/form-data} form with the file as its only part,
+     * streamed from disk when the request is sent
+     *
+     * @param file        file to send
+     * @param contentType MIME type of the file
+     */
+    public InsightlyRequest uploadMultipart(Path file, String contentType) {
+        upload(file, contentType);
+        this.multipart = true;
+        return this;
+    }
+
+    /**
+     * Sets the scheduling class of the request
+     *
+     * @param priority request priority
+     */
+    public InsightlyRequest priority(Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Decodes the response through a string table, deduplicating its keys and short values
+     *
+     * @param strings string table, or {@code null} to decode normally
+     */
+    public InsightlyRequest strings(StringTable strings) {
+        this.strings = strings;
+        return this;
+    }
+
+    /**
+     * Runs the request through the interceptors and sends it to the server
+     *
+     * @return response body
+     */
+    String execute() throws InsightlyException {
+        // fixed once, so waits in interceptors and the send itself share one overall timeout
+        effectiveDeadline = null;
+        effectiveDeadline = effectiveDeadline();
+        return new Chain(0).proceed(this);
+    }
+
+    /**
+     * Sends the request to the server, bypassing interceptors
+     *
+     * @return response body
+     */
+    String send() throws InsightlyException {
+        Deadline deadline = effectiveDeadline();
+        Abortable abortable = ABORTABLE.get();
+        if (deadline != null || !timeouts.isDefault() || upload != null || download != null || abortable != null) {
+            return sendWithTimeouts(deadline, abortable);
+        }
         try {
             return verifyResponse(buildHttpRequest().asString()).getBody();
         } catch (UnirestException ex) {
@@ -157,6 +363,227 @@ public class InsightlyRequest {
         }
     }
 
+    /**
+     * Sets connect, read and overall timeouts for this request
+     *
+     * @param timeouts request timeouts
+     */
+    public InsightlyRequest timeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+        return this;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Sets the time by which the request has to complete; it is aborted when the deadline passes
+     *
+     * @param deadline deadline, or {@code null} for none
+     */
+    public InsightlyRequest deadline(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Earlier of the request deadline and the overall timeout, or {@code null} if neither is set.
+     * The overall timeout counts from the start of {@link #execute()}.
+     */
+    Deadline effectiveDeadline() {
+        if (effectiveDeadline != null) {
+            return effectiveDeadline;
+        }
+        Deadline effective = deadline;
+        if (timeouts.getOverallMillis() > 0) {
+            effective = Deadline.after(timeouts.getOverallMillis(), TimeUnit.MILLISECONDS).min(effective);
+        }
+        return effective;
+    }
+
+    /**
+     * Sends the request with the Apache client underlying Unirest, which supports per request timeouts,
+     * and aborts the connection when the deadline passes or the request is aborted through {@code abortable}
+     */
+    private String sendWithTimeouts(Deadline deadline, Abortable abortable) throws InsightlyException {
+        if (deadline != null && deadline.isExpired()) {
+            throw deadlineExceeded(null);
+        }
+        long offset = 0;
+        if (download != null && resume) {
+            try {
+                offset = Files.exists(download) ? Files.size(download) : 0;
+            } catch (IOException ex) {
+                throw new InsightlyException(ex.getMessage(), ex);
+            }
+        }
+        final HttpRequestBase request = buildTimedHttpRequest();
+        if (offset > 0) {
+            request.setHeader("Range", "bytes=" + offset + "-");
+        }
+        final AtomicBoolean aborted = new AtomicBoolean();
+        ScheduledFuture<?> abort = null;
+        if (deadline != null) {
+            abort = DEADLINES.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    aborted.set(true);
+                    request.abort();
+                }
+            }, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+        try {
+            if (abortable != null) {
+                abortable.attach(request);
+            }
+            HttpClient client = (HttpClient) Options.getOption(Option.HTTPCLIENT);
+            org.apache.http.HttpResponse response = client.execute(request);
+            if (download != null) {
+                return receive(response, offset);
+            }
+            return verifyResponse(new HttpResponse<String>(response, String.class)).getBody();
+        } catch (IOException ex) {
+            throw aborted.get() ? deadlineExceeded(ex) : new InsightlyException(ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            // Unirest wraps failures while reading the response body
+            if (aborted.get()) {
+                throw deadlineExceeded(ex);
+            }
+            if (ex.getCause() instanceof IOException) {
+                throw new InsightlyException(ex.getCause().getMessage(), ex.getCause());
+            }
+            throw ex;
+        } finally {
+            if (abort != null) {
+                abort.cancel(false);
+            }
+            if (abortable != null) {
+                abortable.detach();
+            }
+            request.releaseConnection();
+        }
+    }
+
+    /**
+     * Writes the body of a download response into the target file, appending from {@code offset}
+     * if the server honoured the range
+     */
+    private String receive(org.apache.http.HttpResponse response, long offset) throws IOException, InsightlyException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status == 416 && offset > 0) {
+            // nothing beyond what we already have
+            EntityUtils.consume(response.getEntity());
+            return "";
+        }
+        if (status == 206) {
+            if (offset != rangeStart(response)) {
+                EntityUtils.consume(response.getEntity());
+                throw new InsightlyException("Server returned an unexpected range "
+                        + response.getFirstHeader("Content-Range"));
+            }
+        } else if (status == 200 || status == 201 || status == 202) {
+            offset = 0;
+        } else {
+            verifyResponse(new HttpResponse<String>(response, String.class));
+        }
+
+        HttpEntity entity = response.getEntity();
+        FileChannel out = FileChannel.open(download, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            out.truncate(offset);
+            if (entity != null) {
+                ReadableByteChannel in = Channels.newChannel(entity.getContent());
+                try {
+                    long position = offset;
+                    long transferred;
+                    while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK)) > 0) {
+                        position += transferred;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            out.force(false);
+        } finally {
+            out.close();
+        }
+        return "";
+    }
+
+    private static long rangeStart(org.apache.http.HttpResponse response) {
+        // Content-Range: bytes <start>-<end>/<size>
+        org.apache.http.Header header = response.getFirstHeader("Content-Range");
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-', space + 1);
+        try {
+            return dash < 0 ? -1 : Long.parseLong(value.substring(space + 1, dash).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private HttpRequestBase buildTimedHttpRequest() throws InsightlyException {
+        String url = url();
+        HttpRequestBase request;
+        if (method.equals("GET")) {
+            request = new HttpGet(url);
+        } else if (method.equals("DELETE")) {
+            request = new HttpDelete(url);
+        } else if (method.equals("PUT") || method.equals("POST")) {
+            HttpEntityEnclosingRequestBase req = method.equals("PUT") ? new HttpPut(url) : new HttpPost(url);
+            if (upload != null && multipart) {
+                req.setEntity(MultipartEntityBuilder.create()
+                        .addBinaryBody("file", upload.toFile(), uploadType, upload.getFileName().toString())
+                        .build());
+            } else if (upload != null) {
+                req.setEntity(new FileEntity(upload.toFile(), uploadType));
+            } else {
+                req.setHeader("Content-Type", "application/json");
+            }
+            if (upload == null && this.body != null) {
+                req.setEntity(new StringEntity(this.body, "UTF-8"));
+            }
+            request = req;
+        } else {
+            throw new InsightlyException("Cannot build the request",
+                    new IOException("parameter method must be GET|DELETE|PUT|UPDATE"));
+        }
+
+        String credentials = apikey + ":";
+        request.setHeader("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8)));
+        // ranges refer to the unencoded file, so downloads are not compressed
+        request.setHeader("Accept-Encoding", download != null ? "identity" : "gzip");
+
+        long connect = timeouts.getConnectMillis() > 0
+                ? timeouts.getConnectMillis() : unirestTimeout(Option.CONNECTION_TIMEOUT, Options.CONNECTION_TIMEOUT);
+        long read = timeouts.getReadMillis() > 0
+                ? timeouts.getReadMillis() : unirestTimeout(Option.SOCKET_TIMEOUT, UNIREST_SOCKET_TIMEOUT);
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout((int) connect)
+                .setConnectionRequestTimeout((int) connect)
+                .setSocketTimeout((int) read)
+                .build());
+        return request;
+    }
+
+    private static long unirestTimeout(Option option, long defaultValue) {
+        Object value = Options.getOption(option);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    static InsightlyException deadlineExceeded(Throwable cause) {
+        TimeoutException timeout = new TimeoutException("Deadline exceeded");
+        if (cause != null) {
+            timeout.initCause(cause);
+        }
+        return new InsightlyException("Deadline exceeded", timeout);
+    }
+
     /**
      * Sets the body of the request to provided string
      *
@@ -206,10 +633,30 @@ public class InsightlyRequest {
         return this.queryParam(name, String.valueOf(value));
     }
 
+    /**
+     * Appends an already URL encoded query string to the request URL
+     *
+     * @param query query string without the leading {@code ?}
+     */
+    InsightlyRequest rawQuery(String query) {
+        if (query.length() > 0) {
+            this.rawQuery = this.rawQuery == null ? query : this.rawQuery + "&" + query;
+        }
+        return this;
+    }
+
+    private String url() {
+        String url = this.url.toString();
+        if (rawQuery == null) {
+            return url;
+        }
+        return url + (url.indexOf('?') >= 0 ? "&" : "?") + rawQuery;
+    }
+
     private HttpRequest buildHttpRequest() throws IOException {
         try {
             HttpRequest request = null;
-            String url = this.url.toString();
+            String url = url();
 
             if (method.equals("GET")) {
                 request = Unirest.get(url);
@@ -282,8 +729,130 @@ public class InsightlyRequest {
         return this;
     }
 
+    /**
+     * Adds the parameters of a compiled {@link InsightlyQuery} to the request URL
+     *
+     * @param query compiled query
+     */
+    public InsightlyRequest query(InsightlyQuery.Compiled query) {
+        return query.applyTo(this);
+    }
+
+    private static final long UNIREST_SOCKET_TIMEOUT = 60000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TRANSFER_CHUNK = 1 << 20;
+
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "insightly-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final ThreadLocal<Abortable> ABORTABLE = new ThreadLocal<Abortable>();
+
+    /**
+     * Handle to abort the request sent by the current thread, used to cancel the losing attempt of a hedged
+     * request; aborting closes the connection instead of waiting for the response
+     */
+    static final class Abortable {
+
+        /**
+         * Binds the handle to the current thread; requests sent by the thread until {@link #unbind()} are
+         * sent through an abortable connection
+         */
+        void bind() {
+            ABORTABLE.set(this);
+        }
+
+        void unbind() {
+            ABORTABLE.remove();
+        }
+
+        void abort() {
+            lock.lock();
+            try {
+                aborted = true;
+                if (request != null) {
+                    request.abort();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isAborted() {
+            lock.lock();
+            try {
+                return aborted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void attach(HttpRequestBase request) {
+            lock.lock();
+            try {
+                this.request = request;
+                if (aborted) {
+                    request.abort();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void detach() {
+            lock.lock();
+            try {
+                this.request = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private HttpRequestBase request;
+        private boolean aborted;
+    }
+
+    private class Chain implements InsightlyInterceptor.Chain {
+        Chain(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String proceed(InsightlyRequest request) throws InsightlyException {
+            if (index < interceptors.size()) {
+                return interceptors.get(index).intercept(request, new Chain(index + 1));
+            }
+            return request.send();
+        }
+
+        private final int index;
+    }
+
     private String apikey;
     private URIBuilder url;
+    private String rawQuery;
     private String method;
     private String body;
+    private Priority priority = Priority.INTERACTIVE;
+    private Timeouts timeouts = Timeouts.DEFAULT;
+    private Deadline deadline;
+    private Deadline effectiveDeadline;
+    private StringTable strings;
+    private Path upload;
+    private ContentType uploadType;
+    private boolean multipart;
+    private Path download;
+    private boolean resume;
+    private final List<InsightlyInterceptor> interceptors = new ArrayList<InsightlyInterceptor>();
 }
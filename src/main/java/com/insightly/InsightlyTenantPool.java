@@ -0,0 +1,176 @@
+package com.insightly;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Manages {@link Insightly} clients for many accounts (API keys) sharing one process.
+ * </p>
+ * <p>
+ * <p>
+ * Every API key gets its own client with its own {@link Budget}: a cap on concurrent requests (and therefore on
+ * the connections it can hold), an optional request rate and a scheduling weight.
+ * All tenants share a bounded global number of in-flight requests, which is handed out by weighted round robin,
+ * so a tenant running a large export cannot starve tenants with a few interactive requests.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * InsightlyTenantPool pool = new InsightlyTenantPool(32);
+ * Insightly client = pool.client(apikey, new InsightlyTenantPool.Budget(4, 5.0, 1));
+ * JSONArray contacts = client.getContacts(null);
+ * }
+ * </pre>
+ * <p>
+ * <p>
+ * Note that the underlying Unirest connection pool is process wide; make sure its size
+ * ({@code Unirest.setConcurrency}) is at least the global capacity of the pool.
+ * </p>
+ */
+public class InsightlyTenantPool {
+
+    /**
+     * Per tenant limits
+     */
+    public static final class Budget {
+        /**
+         * @param maxConcurrency   maximum number of requests in flight for the tenant
+         * @param requestsPerSecond sustained request rate for the tenant, or 0 for no rate limit
+         * @param weight           share of the global capacity relative to other tenants
+         */
+        public Budget(int maxConcurrency, double requestsPerSecond, int weight) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("maxConcurrency must be at least 1, was " + maxConcurrency);
+            }
+            if (requestsPerSecond < 0) {
+                throw new IllegalArgumentException("requestsPerSecond must not be negative, was " + requestsPerSecond);
+            }
+            if (weight < 1) {
+                throw new IllegalArgumentException("weight must be at least 1, was " + weight);
+            }
+            this.maxConcurrency = maxConcurrency;
+            this.requestsPerSecond = requestsPerSecond;
+            this.weight = weight;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        private final int maxConcurrency;
+        private final double requestsPerSecond;
+        private final int weight;
+    }
+
+    public static final Budget DEFAULT_BUDGET = new Budget(4, 0, 1);
+
+    /**
+     * @param globalConcurrency maximum number of requests in flight across all tenants
+     */
+    public InsightlyTenantPool(int globalConcurrency) {
+        this(globalConcurrency, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param globalConcurrency maximum number of requests in flight across all tenants
+     * @param defaultBudget     budget for tenants added without an explicit budget
+     */
+    public InsightlyTenantPool(int globalConcurrency, Budget defaultBudget) {
+        this.scheduler = new FairScheduler(globalConcurrency);
+        this.defaultBudget = defaultBudget;
+    }
+
+    /**
+     * Returns the client for the API key, creating it with the default budget if needed
+     */
+    public Insightly client(String apikey) {
+        return client(apikey, null);
+    }
+
+    /**
+     * Returns the client for the API key, creating it with the given budget if needed.
+     * The budget of an existing client is not changed.
+     */
+    public Insightly client(String apikey, Budget budget) {
+        lock.lock();
+        try {
+            Tenant tenant = tenants.get(apikey);
+            if (tenant == null) {
+                tenant = new Tenant(apikey, budget != null ? budget : defaultBudget);
+                tenants.put(apikey, tenant);
+            }
+            return tenant.client;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a tenant. Its client must no longer be used.
+     */
+    public void remove(String apikey) {
+        lock.lock();
+        try {
+            Tenant tenant = tenants.remove(apikey);
+            if (tenant != null) {
+                scheduler.unregister(tenant.slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests in flight across all tenants
+     */
+    public int getInFlight() {
+        return scheduler.getInFlight();
+    }
+
+    private class Tenant implements InsightlyInterceptor {
+        Tenant(String apikey, Budget budget) {
+            this.slot = scheduler.register(mask(apikey), budget.getWeight(), budget.getMaxConcurrency());
+            this.rateLimiter = budget.getRequestsPerSecond() > 0
+                    ? new RateLimiter(budget.getRequestsPerSecond(), budget.getMaxConcurrency())
+                    : null;
+            this.client = new Insightly(apikey).addInterceptor(this);
+        }
+
+        @Override
+        public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+            Deadline deadline = request.effectiveDeadline();
+            if (rateLimiter != null) {
+                rateLimiter.acquire(deadline);
+            }
+            scheduler.acquire(slot, deadline);
+            try {
+                return chain.proceed(request);
+            } finally {
+                scheduler.release(slot);
+            }
+        }
+
+        final FairScheduler.Tenant slot;
+        final RateLimiter rateLimiter;
+        final Insightly client;
+    }
+
+    private static String mask(String apikey) {
+        return apikey.length() <= 4 ? "****" : "****" + apikey.substring(apikey.length() - 4);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FairScheduler scheduler;
+    private final Budget defaultBudget;
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+}
@@ -0,0 +1,287 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Offset based helpers for walking JSON text without building a tree
+ */
+final class JsonScanner {
+
+    private JsonScanner() {
+    }
+
+    static int skipWhitespace(String json, int i) {
+        int length = json.length();
+        while (i < length) {
+            char c = json.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return i;
+            }
+            i++;
+        }
+        throw new JSONException("Unexpected end of JSON text");
+    }
+
+    /**
+     * @param i offset of the opening quote
+     * @return offset just past the closing quote
+     */
+    static int skipString(String json, int i) {
+        int length = json.length();
+        for (int j = i + 1; j < length; j++) {
+            char c = json.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '"') {
+                return j + 1;
+            }
+        }
+        throw new JSONException("Unterminated string at offset " + i);
+    }
+
+    /**
+     * @param i offset of the first character of the value
+     * @return offset just past the value
+     */
+    static int skipValue(String json, int i) {
+        char c = json.charAt(i);
+        if (c == '"') {
+            return skipString(json, i);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            int length = json.length();
+            for (int j = i; j < length; j++) {
+                c = json.charAt(j);
+                if (c == '"') {
+                    j = skipString(json, j) - 1;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return j + 1;
+                }
+            }
+            throw new JSONException("Unterminated value at offset " + i);
+        }
+        int length = json.length();
+        int j = i;
+        while (j < length) {
+            c = json.charAt(j);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                break;
+            }
+            j++;
+        }
+        if (j == i) {
+            throw new JSONException("Missing value at offset " + i);
+        }
+        return j;
+    }
+
+    /**
+     * Decodes the value between the offsets into the types used by {@link JSONObject}
+     *
+     * @param strings table deduplicating keys and short string values, or {@code null}
+     */
+    static Object decodeValue(String json, int start, int end, StringTable strings) {
+        char c = json.charAt(start);
+        if (c == '"') {
+            return decodeString(json, start, strings);
+        }
+        if (c == '{' || c == '[') {
+            if (strings == null) {
+                return c == '{' ? new JSONObject(json.substring(start, end)) : new JSONArray(json.substring(start, end));
+            }
+            return new TreeDecoder(json, strings).value(start);
+        }
+        return JSONObject.stringToValue(json.substring(start, end));
+    }
+
+    /**
+     * Decodes a whole response the way Unirest's {@code JsonNode} does: blank text is an empty object,
+     * otherwise the text must be an object or an array
+     *
+     * @param strings table deduplicating keys and short string values
+     */
+    static Object decode(String json, StringTable strings) {
+        if (json == null || json.trim().isEmpty()) {
+            return new JSONObject();
+        }
+        int start = skipWhitespace(json, 0);
+        char c = json.charAt(start);
+        if (c != '{' && c != '[') {
+            throw new JSONException("A JSON text must begin with '{' or '[' at offset " + start);
+        }
+        TreeDecoder decoder = new TreeDecoder(json, strings);
+        Object value = decoder.value(start);
+        int end = decoder.position;
+        if (end < json.length() && !json.substring(end).trim().isEmpty()) {
+            throw new JSONException("Unexpected text after JSON value at offset " + end);
+        }
+        return value;
+    }
+
+    static String decodeString(String json, int i, StringTable strings) {
+        if (strings == null) {
+            return decodeString(json, i);
+        }
+        int end = skipString(json, i) - 1;
+        for (int j = i + 1; j < end; j++) {
+            if (json.charAt(j) == '\\') {
+                return strings.intern(decodeString(json, i));
+            }
+        }
+        return strings.intern(json, i + 1, end);
+    }
+
+    static String decodeKey(String json, int i, StringTable strings) {
+        int end = skipString(json, i) - 1;
+        for (int j = i + 1; j < end; j++) {
+            if (json.charAt(j) == '\\') {
+                String key = decodeString(json, i);
+                return strings == null ? key : strings.internKey(key);
+            }
+        }
+        return strings == null ? json.substring(i + 1, end) : strings.internKey(json, i + 1, end);
+    }
+
+    /**
+     * @param i offset of the opening quote
+     */
+    static String decodeString(String json, int i) {
+        int end = skipString(json, i) - 1;
+        int escape = -1;
+        for (int j = i + 1; j < end; j++) {
+            if (json.charAt(j) == '\\') {
+                escape = j;
+                break;
+            }
+        }
+        if (escape < 0) {
+            return json.substring(i + 1, end);
+        }
+        StringBuilder sb = new StringBuilder(end - i);
+        sb.append(json, i + 1, escape);
+        for (int j = escape; j < end; j++) {
+            char c = json.charAt(j);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++j);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(j + 1, j + 5), 16));
+                    } catch (RuntimeException ex) {
+                        throw new JSONException("Illegal escape at offset " + j);
+                    }
+                    j += 4;
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds {@link JSONObject}/{@link JSONArray} trees in a single pass, deduplicating strings
+     */
+    private static final class TreeDecoder {
+
+        TreeDecoder(String json, StringTable strings) {
+            this.json = json;
+            this.strings = strings;
+        }
+
+        Object value(int start) {
+            char c = json.charAt(start);
+            if (c == '{') {
+                return object(start);
+            }
+            if (c == '[') {
+                return array(start);
+            }
+            position = skipValue(json, start);
+            if (c == '"') {
+                return decodeString(json, start, strings);
+            }
+            return JSONObject.stringToValue(json.substring(start, position));
+        }
+
+        private JSONObject object(int start) {
+            JSONObject object = new JSONObject();
+            int i = skipWhitespace(json, start + 1);
+            if (json.charAt(i) == '}') {
+                position = i + 1;
+                return object;
+            }
+            while (true) {
+                i = skipWhitespace(json, i);
+                if (json.charAt(i) != '"') {
+                    throw new JSONException("Expected a key at offset " + i);
+                }
+                String key = decodeKey(json, i, strings);
+                i = skipWhitespace(json, skipString(json, i));
+                if (json.charAt(i) != ':') {
+                    throw new JSONException("Expected ':' at offset " + i);
+                }
+                object.put(key, value(skipWhitespace(json, i + 1)));
+                i = skipWhitespace(json, position);
+                char c = json.charAt(i);
+                if (c == '}') {
+                    position = i + 1;
+                    return object;
+                }
+                if (c != ',') {
+                    throw new JSONException("Expected ',' or '}' at offset " + i);
+                }
+                i++;
+            }
+        }
+
+        private JSONArray array(int start) {
+            JSONArray array = new JSONArray();
+            int i = skipWhitespace(json, start + 1);
+            if (json.charAt(i) == ']') {
+                position = i + 1;
+                return array;
+            }
+            while (true) {
+                array.put(value(skipWhitespace(json, i)));
+                i = skipWhitespace(json, position);
+                char c = json.charAt(i);
+                if (c == ']') {
+                    position = i + 1;
+                    return array;
+                }
+                if (c != ',') {
+                    throw new JSONException("Expected ',' or ']' at offset " + i);
+                }
+                i++;
+            }
+        }
+
+        private final String json;
+        private final StringTable strings;
+        int position;
+    }
+}
@@ -0,0 +1,141 @@
+package com.insightly;
+
+import org.json.JSONArray;
+
+/**
+ * <p>
+ * Pages through an entity collection using keyset (seek) pagination.
+ * </p>
+ * <p>
+ * <p>
+ * Instead of {@code $skip}, which makes the server walk past every skipped row,
+ * each page is requested with {@code $orderby=<ID field>} and {@code $filter=<ID field> gt <last seen ID>}.
+ * Every request therefore costs the same regardless of how deep the scan is,
+ * and records inserted or deleted during the scan do not shift the remaining pages,
+ * so no record is returned twice or skipped.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * KeysetPager pager = i.keysetPager(InsightlyQuery.from(InsightlyEntity.CONTACTS), 500);
+ * while (pager.hasNext()) {
+ *     JSONArray page = pager.next();
+ *     ...
+ * }
+ * }
+ * </pre>
+ * <p>
+ * <p>
+ * A scan can be resumed later by passing {@link #getLastSeenId()} to {@link Insightly#keysetPager(InsightlyQuery, long, long)}.
+ * </p>
+ */
+public class KeysetPager {
+
+    KeysetPager(Insightly insightly, InsightlyQuery query, long pageSize, long lastSeenId) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+        }
+        if (query.hasOrdering()) {
+            throw new IllegalArgumentException("Keyset pagination orders by ID; the query must not specify an ordering");
+        }
+        if (query.hasPaging()) {
+            throw new IllegalArgumentException("Keyset pagination pages by ID; the query must not specify top or skip");
+        }
+        this.insightly = insightly;
+        this.query = query.copy();
+        this.pageSize = pageSize;
+        this.lastSeenId = lastSeenId;
+        this.idField = query.getEntity().getIdField();
+    }
+
+    /**
+     * Whether another page may be available
+     */
+    public boolean hasNext() {
+        return !finished;
+    }
+
+    /**
+     * Fetches the next page. The last page may be empty.
+     */
+    public JSONArray next() throws InsightlyException {
+        JSONArray records = InsightlyRequest.decodeArray(fetch(), insightly.getStringTable());
+        advance(records.length(), records.length() > 0
+                ? records.getJSONObject(records.length() - 1).getLong(idField) : lastSeenId);
+        return records;
+    }
+
+    /**
+     * Fetches the next page and returns only the IDs of its records, in ascending order.
+     * Records are decoded lazily, so nothing but the ID field is ever parsed.
+     */
+    public long[] nextIds() throws InsightlyException {
+        LazyRecords records = nextLazy();
+        long[] ids = new long[records.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = records.get(i).getLong(idField);
+        }
+        return ids;
+    }
+
+    /**
+     * Fetches the next page as records that are decoded on first access
+     */
+    public LazyRecords nextLazy() throws InsightlyException {
+        LazyRecords records = LazyRecords.parse(fetch(), insightly.getStringTable());
+        advance(records.size(), records.isEmpty()
+                ? lastSeenId : records.get(records.size() - 1).getLong(idField));
+        return records;
+    }
+
+    private InsightlyQuery.Compiled nextPage() {
+        if (finished) {
+            throw new IllegalStateException("No more pages");
+        }
+        return query.copy()
+                .gt(idField, lastSeenId)
+                .orderBy(idField)
+                .top(pageSize)
+                .compile();
+    }
+
+    void advance(int count, long lastId) {
+        lastSeenId = lastId;
+        if (count < pageSize) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Number of records requested per page
+     */
+    public long getPageSize() {
+        return pageSize;
+    }
+
+    void setPageSize(long pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Fetches the response body of the next page without advancing. Every page is read through here,
+     * whichever way it is decoded.
+     */
+    String fetch() throws InsightlyException {
+        return insightly.queryRequest(nextPage()).asString();
+    }
+
+    /**
+     * ID of the last record returned so far, or the starting ID if no records were returned yet
+     */
+    public long getLastSeenId() {
+        return lastSeenId;
+    }
+
+    final Insightly insightly;
+    private final InsightlyQuery query;
+    private long pageSize;
+    private final String idField;
+    private long lastSeenId;
+    private boolean finished;
+}
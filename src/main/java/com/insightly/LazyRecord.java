@@ -0,0 +1,316 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * A JSON object that is decoded on demand from the raw response text.
+ * </p>
+ * <p>
+ * <p>
+ * The record only remembers where it starts and ends in the response. On first access it scans its own top level
+ * once, recording the offsets of every key and value without allocating them; a value is decoded (and cached)
+ * only when it is read. Nested arrays and objects such as {@code ADDRESSES}, {@code CONTACTINFOS},
+ * {@code CUSTOMFIELDS}, {@code LINKS} and {@code TAGS} are skipped entirely unless requested.
+ * Reading a handful of fields from each of many records therefore costs a fraction of building a full {@link JSONObject}.
+ * </p>
+ * <p>
+ * <p>
+ * The getters mirror those of {@link JSONObject}. Like {@code JSONObject}, instances are not thread safe.
+ * Records are created by {@link LazyRecords#parse(String)}; keys and values read from records parsed with a
+ * {@link StringTable} are deduplicated through the table.
+ * </p>
+ */
+public class LazyRecord {
+
+    LazyRecord(String source, int start, int end, StringTable strings) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.strings = strings;
+    }
+
+    public boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value of the key as {@link String}, {@link Boolean}, {@link Integer}, {@link Long}, {@link Double},
+     * {@link JSONObject}, {@link JSONArray} or {@link JSONObject#NULL}
+     *
+     * @throws JSONException if the key is not present
+     */
+    public Object get(String key) {
+        int field = indexOf(key);
+        if (field < 0) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not found.");
+        }
+        return value(field);
+    }
+
+    public Object opt(String key) {
+        int field = indexOf(key);
+        return field < 0 ? null : value(field);
+    }
+
+    public boolean isNull(String key) {
+        Object value = opt(key);
+        return value == null || JSONObject.NULL.equals(value);
+    }
+
+    public String getString(String key) {
+        Object value = get(key);
+        if (value instanceof String) {
+            return (String) value;
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not a string.");
+    }
+
+    public String optString(String key) {
+        return optString(key, "");
+    }
+
+    public String optString(String key, String defaultValue) {
+        Object value = opt(key);
+        return value == null || JSONObject.NULL.equals(value) ? defaultValue : value.toString();
+    }
+
+    public long getLong(String key) {
+        Object value = get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException ex) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a number.");
+        }
+    }
+
+    public long optLong(String key, long defaultValue) {
+        Object value = opt(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    public int getInt(String key) {
+        return (int) getLong(key);
+    }
+
+    public double getDouble(String key) {
+        Object value = get(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException ex) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a number.");
+        }
+    }
+
+    public boolean getBoolean(String key) {
+        Object value = get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a Boolean.");
+    }
+
+    public boolean optBoolean(String key, boolean defaultValue) {
+        Object value = opt(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    public JSONArray getJSONArray(String key) {
+        Object value = get(key);
+        if (value instanceof JSONArray) {
+            return (JSONArray) value;
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a JSONArray.");
+    }
+
+    public JSONObject getJSONObject(String key) {
+        Object value = get(key);
+        if (value instanceof JSONObject) {
+            return (JSONObject) value;
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a JSONObject.");
+    }
+
+    /**
+     * Returns a nested object as another lazy record, without decoding it
+     */
+    public LazyRecord getRecord(String key) {
+        int field = indexOf(key);
+        if (field < 0 || source.charAt(valueStart[field]) != '{') {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a JSONObject.");
+        }
+        return new LazyRecord(source, valueStart[field], valueEnd[field], strings);
+    }
+
+    /**
+     * Names of the fields of this record, in document order
+     */
+    public List<String> keys() {
+        index();
+        List<String> keys = new ArrayList<String>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            keys.add(key(i));
+        }
+        return Collections.unmodifiableList(keys);
+    }
+
+    public int length() {
+        index();
+        return fieldCount;
+    }
+
+    /**
+     * Decodes the whole record
+     */
+    public JSONObject toJSONObject() {
+        return (JSONObject) JsonScanner.decodeValue(source, start, end, strings);
+    }
+
+    /**
+     * The raw JSON text of this record
+     */
+    @Override
+    public String toString() {
+        return source.substring(start, end);
+    }
+
+    /**
+     * Writes the record's JSON text followed by a newline, copying it straight from the response
+     * unless it contains line breaks
+     */
+    void writeLine(Writer out) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '\n' || c == '\r') {
+                // only whitespace between tokens can hold a raw line break
+                out.write(toJSONObject().toString());
+                out.write('\n');
+                return;
+            }
+        }
+        out.write(source, start, end - start);
+        out.write('\n');
+    }
+
+    int indexOf(String key) {
+        index();
+        for (int i = 0; i < fieldCount; i++) {
+            int length = keyEnd[i] - keyStart[i];
+            if (escapedKeys) {
+                if (key.equals(key(i))) {
+                    return i;
+                }
+            } else if (length == key.length() && source.regionMatches(keyStart[i], key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String key(int field) {
+        return JsonScanner.decodeKey(source, keyStart[field] - 1, strings);
+    }
+
+    private Object value(int field) {
+        if (values == null) {
+            values = new Object[fieldCount];
+        }
+        Object value = values[field];
+        if (value == null) {
+            value = decode(field);
+            values[field] = value;
+        }
+        return value;
+    }
+
+    Object decode(int field) {
+        return JsonScanner.decodeValue(source, valueStart[field], valueEnd[field], strings);
+    }
+
+    private void index() {
+        if (keyStart != null) {
+            return;
+        }
+        int capacity = 8;
+        int[] ks = new int[capacity];
+        int[] ke = new int[capacity];
+        int[] vs = new int[capacity];
+        int[] ve = new int[capacity];
+        int count = 0;
+        boolean escaped = false;
+
+        int i = JsonScanner.skipWhitespace(source, start + 1);
+        if (source.charAt(i) != '}') {
+            while (true) {
+                i = JsonScanner.skipWhitespace(source, i);
+                if (source.charAt(i) != '"') {
+                    throw new JSONException("Expected a key at offset " + i);
+                }
+                int keyEndQuote = JsonScanner.skipString(source, i) - 1;
+                for (int k = i + 1; k < keyEndQuote && !escaped; k++) {
+                    escaped = source.charAt(k) == '\\';
+                }
+                if (count == capacity) {
+                    capacity *= 2;
+                    ks = Arrays.copyOf(ks, capacity);
+                    ke = Arrays.copyOf(ke, capacity);
+                    vs = Arrays.copyOf(vs, capacity);
+                    ve = Arrays.copyOf(ve, capacity);
+                }
+                ks[count] = i + 1;
+                ke[count] = keyEndQuote;
+                i = JsonScanner.skipWhitespace(source, keyEndQuote + 1);
+                if (source.charAt(i) != ':') {
+                    throw new JSONException("Expected ':' at offset " + i);
+                }
+                i = JsonScanner.skipWhitespace(source, i + 1);
+                vs[count] = i;
+                i = JsonScanner.skipValue(source, i);
+                ve[count] = i;
+                count++;
+                i = JsonScanner.skipWhitespace(source, i);
+                char c = source.charAt(i);
+                if (c == ',') {
+                    i++;
+                } else if (c == '}') {
+                    break;
+                } else {
+                    throw new JSONException("Expected ',' or '}' at offset " + i);
+                }
+            }
+        }
+        keyStart = ks;
+        keyEnd = ke;
+        valueStart = vs;
+        valueEnd = ve;
+        fieldCount = count;
+        escapedKeys = escaped;
+    }
+
+    final String source;
+    private final int start;
+    private final int end;
+    private final StringTable strings;
+    private int[] keyStart;
+    private int[] keyEnd;
+    int[] valueStart;
+    int[] valueEnd;
+    private int fieldCount;
+    private boolean escapedKeys;
+    private Object[] values;
+}
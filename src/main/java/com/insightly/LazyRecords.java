@@ -0,0 +1,129 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The records of a response, decoded on demand.
+ * </p>
+ * <p>
+ * <p>
+ * Parsing only locates the boundaries of each record in the response text, so it is a single pass over the text
+ * that allocates little more than two {@code int} offsets per record. The records themselves are {@link LazyRecord}s
+ * and decode their fields when they are first read.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * for (LazyRecord contact : i.queryLazy(InsightlyQuery.from(InsightlyEntity.CONTACTS).top(5000))) {
+ *     System.out.println(contact.getLong("CONTACT_ID") + " " + contact.optString("LAST_NAME"));
+ * }
+ * }
+ * </pre>
+ */
+public class LazyRecords extends AbstractList<LazyRecord> {
+
+    /**
+     * Parses a response holding either an array of objects or a single object
+     *
+     * @throws JSONException if the text is not an object or an array of objects
+     */
+    public static LazyRecords parse(String json) {
+        return parse(json, null);
+    }
+
+    /**
+     * Parses a response holding either an array of objects or a single object
+     *
+     * @param strings table deduplicating the keys and short values read from the records, or {@code null}
+     * @throws JSONException if the text is not an object or an array of objects
+     */
+    public static LazyRecords parse(String json, StringTable strings) {
+        int i = JsonScanner.skipWhitespace(json, 0);
+        char c = json.charAt(i);
+        if (c == '{') {
+            return new LazyRecords(json, new int[]{i}, new int[]{JsonScanner.skipValue(json, i)}, 1, strings);
+        }
+        if (c != '[') {
+            throw new JSONException("Expected an object or an array at offset " + i);
+        }
+
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int count = 0;
+        i = JsonScanner.skipWhitespace(json, i + 1);
+        if (json.charAt(i) != ']') {
+            while (true) {
+                i = JsonScanner.skipWhitespace(json, i);
+                if (json.charAt(i) != '{') {
+                    throw new JSONException("Expected an object at offset " + i);
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = i;
+                i = JsonScanner.skipValue(json, i);
+                ends[count] = i;
+                count++;
+                i = JsonScanner.skipWhitespace(json, i);
+                c = json.charAt(i);
+                if (c == ',') {
+                    i++;
+                } else if (c == ']') {
+                    break;
+                } else {
+                    throw new JSONException("Expected ',' or ']' at offset " + i);
+                }
+            }
+        }
+        return new LazyRecords(json, starts, ends, count, strings);
+    }
+
+    private LazyRecords(String source, int[] starts, int[] ends, int size, StringTable strings) {
+        this.source = source;
+        this.strings = strings;
+        this.starts = starts;
+        this.ends = ends;
+        this.records = new LazyRecord[size];
+    }
+
+    @Override
+    public LazyRecord get(int index) {
+        if (index < 0 || index >= records.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + records.length);
+        }
+        LazyRecord record = records[index];
+        if (record == null) {
+            record = new LazyRecord(source, starts[index], ends[index], strings);
+            records[index] = record;
+        }
+        return record;
+    }
+
+    @Override
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * Decodes all records
+     */
+    public JSONArray toJSONArray() {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < records.length; i++) {
+            array.put(get(i).toJSONObject());
+        }
+        return array;
+    }
+
+    private final String source;
+    private final StringTable strings;
+    private final int[] starts;
+    private final int[] ends;
+    private final LazyRecord[] records;
+}
@@ -0,0 +1,165 @@
+package com.insightly;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Records connected by their {@code LINKS}, as resolved by {@link GraphResolver}.
+ * </p>
+ */
+public class LinkGraph {
+
+    /**
+     * A record of the graph
+     */
+    public static final class Node {
+        Node(InsightlyEntity entity, long id, JSONObject record, int depth) {
+            this.entity = entity;
+            this.id = id;
+            this.record = record;
+            this.depth = depth;
+        }
+
+        public InsightlyEntity getEntity() {
+            return entity;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public JSONObject getRecord() {
+            return record;
+        }
+
+        /**
+         * Number of links between the root and this record
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        @Override
+        public String toString() {
+            return entity + ":" + id;
+        }
+
+        private final InsightlyEntity entity;
+        private final long id;
+        private final JSONObject record;
+        private final int depth;
+    }
+
+    /**
+     * A link from one record to another
+     */
+    public static final class Edge {
+        Edge(Node from, Node to, JSONObject link, String label) {
+            this.from = from;
+            this.to = to;
+            this.link = link;
+            this.label = label;
+        }
+
+        public Node getFrom() {
+            return from;
+        }
+
+        public Node getTo() {
+            return to;
+        }
+
+        /**
+         * The link as listed in the {@code LINKS} of the record it was found in,
+         * or {@code null} for a contact's default linked organisation
+         */
+        public JSONObject getLink() {
+            return link;
+        }
+
+        /**
+         * Role of the link, or the title of its relationship, or {@code null} if it has neither
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + (label != null ? " (" + label + ")" : "");
+        }
+
+        private final Node from;
+        private final Node to;
+        private final JSONObject link;
+        private final String label;
+    }
+
+    LinkGraph(Node root) {
+        this.root = root;
+        add(root);
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * All records of the graph, in the order they were reached
+     */
+    public Collection<Node> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    /**
+     * Returns a record of the graph, or {@code null} if it was not reached
+     */
+    public Node getNode(InsightlyEntity entity, long id) {
+        return nodes.get(key(entity, id));
+    }
+
+    public List<Edge> getEdges() {
+        return Collections.unmodifiableList(edges);
+    }
+
+    /**
+     * Links found in the given record
+     */
+    public List<Edge> getEdges(Node from) {
+        List<Edge> found = new ArrayList<Edge>();
+        for (Edge edge : edges) {
+            if (edge.from == from) {
+                found.add(edge);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkGraph[root=" + root + ", nodes=" + nodes.size() + ", edges=" + edges.size() + "]";
+    }
+
+    void add(Node node) {
+        nodes.put(key(node.entity, node.id), node);
+    }
+
+    void add(Edge edge) {
+        edges.add(edge);
+    }
+
+    static String key(InsightlyEntity entity, long id) {
+        return entity.name() + ":" + id;
+    }
+
+    private final Node root;
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final List<Edge> edges = new ArrayList<Edge>();
+}
@@ -0,0 +1,374 @@
+package com.insightly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Immutable set of record IDs stored as a sorted {@code long[]}.
+ * </p>
+ * <p>
+ * <p>
+ * A million IDs take 8 MB instead of the ~40 MB of a {@code HashSet<Long>}. Membership is a binary search,
+ * and {@link #union(LongSet)}, {@link #intersection(LongSet)} and {@link #difference(LongSet)} are linear merges
+ * of the two sorted arrays, which makes the set suitable for reconciling large ID lists, e.g. local against remote.
+ * </p>
+ * <p>
+ * <p>
+ * {@link #toIdsParameters(int)} renders the set as values for the {@code ids} query parameter, split so that no
+ * request URL grows beyond a safe length. {@link Insightly#queryByIds(InsightlyQuery, LongSet)} uses it to fetch
+ * any number of records by ID.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * LongSet.Builder local = LongSet.builder();
+ * for (...) {
+ *     local.add(id);
+ * }
+ * LongSet missing = local.build().difference(remote);
+ * }
+ * </pre>
+ */
+public final class LongSet {
+
+    /**
+     * Encoded length of the {@code ids} parameter value that keeps request URLs well below 2000 characters
+     */
+    public static final int DEFAULT_MAX_IDS_LENGTH = 1500;
+
+    public static final LongSet EMPTY = new LongSet(new long[0], 0);
+
+    public static LongSet of(long... ids) {
+        return builder(ids.length).addAll(ids).build();
+    }
+
+    public static LongSet of(Collection<? extends Number> ids) {
+        Builder builder = builder(ids.size());
+        for (Number id : ids) {
+            builder.add(id.longValue());
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder(16);
+    }
+
+    /**
+     * @param expectedSize number of IDs expected to be added
+     */
+    public static Builder builder(int expectedSize) {
+        return new Builder(Math.max(expectedSize, 1));
+    }
+
+    /**
+     * Collects IDs in any order and with duplicates; {@link #build()} sorts and deduplicates them in place
+     */
+    public static final class Builder {
+
+        private Builder(int capacity) {
+            this.ids = new long[capacity];
+        }
+
+        public Builder add(long id) {
+            ensureCapacity(size + 1);
+            ids[size++] = id;
+            return this;
+        }
+
+        public Builder addAll(long... ids) {
+            ensureCapacity(size + ids.length);
+            System.arraycopy(ids, 0, this.ids, size, ids.length);
+            size += ids.length;
+            return this;
+        }
+
+        public Builder addAll(LongSet ids) {
+            ensureCapacity(size + ids.size);
+            System.arraycopy(ids.ids, 0, this.ids, size, ids.size);
+            size += ids.size;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Builds the set. The builder must not be used afterwards.
+         */
+        public LongSet build() {
+            long[] built = ids;
+            int count = size;
+            ids = null;
+            Arrays.sort(built, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || built[i] != built[unique - 1]) {
+                    built[unique++] = built[i];
+                }
+            }
+            return unique == 0 ? EMPTY : new LongSet(built, unique);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(capacity, ids.length + (ids.length >> 1) + 1));
+            }
+        }
+
+        private long[] ids;
+        private int size;
+    }
+
+    private LongSet(long[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /**
+     * Returns the {@code index}-th smallest ID
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return ids[index];
+    }
+
+    /**
+     * Returns the IDs in ascending order
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * IDs in either set
+     */
+    public LongSet union(LongSet other) {
+        if (other.size == 0) {
+            return this;
+        }
+        if (size == 0) {
+            return other;
+        }
+        long[] merged = new long[size + other.size];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size && j < other.size) {
+            long a = ids[i];
+            long b = other.ids[j];
+            if (a < b) {
+                merged[n++] = a;
+                i++;
+            } else if (a > b) {
+                merged[n++] = b;
+                j++;
+            } else {
+                merged[n++] = a;
+                i++;
+                j++;
+            }
+        }
+        while (i < size) {
+            merged[n++] = ids[i++];
+        }
+        while (j < other.size) {
+            merged[n++] = other.ids[j++];
+        }
+        return new LongSet(merged, n);
+    }
+
+    /**
+     * IDs in both sets
+     */
+    public LongSet intersection(LongSet other) {
+        long[] common = new long[Math.min(size, other.size)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size && j < other.size) {
+            long a = ids[i];
+            long b = other.ids[j];
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                common[n++] = a;
+                i++;
+                j++;
+            }
+        }
+        return n == 0 ? EMPTY : new LongSet(common, n);
+    }
+
+    /**
+     * IDs in this set that are not in the other set
+     */
+    public LongSet difference(LongSet other) {
+        if (other.size == 0 || size == 0) {
+            return this;
+        }
+        long[] remaining = new long[size];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size) {
+            long a = ids[i];
+            while (j < other.size && other.ids[j] < a) {
+                j++;
+            }
+            if (j == other.size || other.ids[j] != a) {
+                remaining[n++] = a;
+            }
+            i++;
+        }
+        return n == 0 ? EMPTY : new LongSet(remaining, n);
+    }
+
+    /**
+     * Splits the set into comma separated values for the {@code ids} query parameter.
+     * Each value is at most {@code maxLength} characters long once URL encoded (commas are encoded as {@code %2C}).
+     * Every chunk is encoded into one reused character buffer, so the only allocation per chunk is its string.
+     *
+     * @param maxLength maximum encoded length of each value, e.g. {@link #DEFAULT_MAX_IDS_LENGTH}
+     */
+    public List<String> toIdsParameters(int maxLength) {
+        if (maxLength < 20) {
+            throw new IllegalArgumentException("maxLength must be at least 20, was " + maxLength);
+        }
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<String> chunks = new ArrayList<String>();
+        char[] buffer = new char[maxLength];
+        int length = 0;
+        int encodedLength = 0;
+        for (int i = 0; i < size; i++) {
+            int digits = digits(ids[i]);
+            int separator = length == 0 ? 0 : ENCODED_SEPARATOR_LENGTH;
+            if (encodedLength + separator + digits > maxLength) {
+                chunks.add(new String(buffer, 0, length));
+                length = 0;
+                encodedLength = 0;
+                separator = 0;
+            }
+            if (separator > 0) {
+                buffer[length++] = ',';
+            }
+            length = appendTo(buffer, length, ids[i], digits);
+            encodedLength += separator + digits;
+        }
+        chunks.add(new String(buffer, 0, length));
+        return chunks;
+    }
+
+    /**
+     * Renders the whole set as one comma separated {@code ids} value
+     */
+    public String toIdsParameter() {
+        int length = Math.max(0, size - 1);
+        for (int i = 0; i < size; i++) {
+            length += digits(ids[i]);
+        }
+        char[] buffer = new char[length];
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                buffer[position++] = ',';
+            }
+            position = appendTo(buffer, position, ids[i], digits(ids[i]));
+        }
+        return new String(buffer);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LongSet)) {
+            return false;
+        }
+        LongSet other = (LongSet) o;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] != other.ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + (int) (ids[i] ^ (ids[i] >>> 32));
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "LongSet[size=" + size + "]";
+    }
+
+    private static int digits(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int digits = value < 0 ? 2 : 1;
+        long remaining = Math.abs(value);
+        while (remaining >= 10) {
+            remaining /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int appendTo(char[] buffer, int position, long value, int digits) {
+        if (value == Long.MIN_VALUE) {
+            String text = Long.toString(value);
+            text.getChars(0, text.length(), buffer, position);
+            return position + text.length();
+        }
+        int end = position + digits;
+        int i = end;
+        long remaining = Math.abs(value);
+        do {
+            buffer[--i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+        if (value < 0) {
+            buffer[--i] = '-';
+        }
+        return end;
+    }
+
+    private static final int ENCODED_SEPARATOR_LENGTH = "%2C".length();
+
+    private final long[] ids;
+    private final int size;
+}
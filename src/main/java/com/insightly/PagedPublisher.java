@@ -0,0 +1,225 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Publishes the records of a list endpoint with backpressure.
+ * </p>
+ * <p>
+ * <p>
+ * The publisher is cold: every subscriber gets its own scan of the query, read page by page with a {@link KeysetPager}.
+ * Pages are only fetched while the subscriber has outstanding demand that the buffered records do not cover,
+ * and never more than {@code prefetchPages} pages ahead, so a slow subscriber holds at most that many pages in memory.
+ * Fetching happens on the executor while the subscriber processes earlier records, so a fast subscriber
+ * is not held up by waiting for each page in turn.
+ * </p>
+ * <p>
+ * <p>
+ * This implements the Reactive Streams {@link Publisher} contract. On Java 9 and later,
+ * {@code org.reactivestreams.FlowAdapters.toFlowPublisher(publisher)} exposes it as a
+ * {@code java.util.concurrent.Flow.Publisher}.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Publisher<JSONObject> contacts = i.publisher(InsightlyQuery.from(InsightlyEntity.CONTACTS), 200, executor);
+ * Flow.Publisher<JSONObject> flow = FlowAdapters.toFlowPublisher(contacts);
+ * }
+ * </pre>
+ */
+public class PagedPublisher implements Publisher<JSONObject> {
+
+    public static final int DEFAULT_PREFETCH_PAGES = 2;
+
+    PagedPublisher(Insightly insightly, InsightlyQuery query, long pageSize, Executor executor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+        }
+        // validate the query up front rather than on every subscription
+        new KeysetPager(insightly, query, pageSize, 0);
+        this.insightly = insightly;
+        this.query = query.copy();
+        this.pageSize = pageSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the maximum number of pages fetched ahead of demand
+     */
+    public PagedPublisher prefetchPages(int prefetchPages) {
+        if (prefetchPages < 1) {
+            throw new IllegalArgumentException("prefetchPages must be at least 1, was " + prefetchPages);
+        }
+        this.prefetchPages = prefetchPages;
+        return this;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super JSONObject> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber must not be null");
+        }
+        PageSubscription subscription = new PageSubscription(subscriber,
+                new KeysetPager(insightly, query, pageSize, 0), prefetchPages * pageSize);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class PageSubscription implements Subscription {
+        PageSubscription(Subscriber<? super JSONObject> subscriber, KeysetPager pager, long maxBuffered) {
+            this.subscriber = subscriber;
+            this.pager = pager;
+            this.maxBuffered = maxBuffered;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // signalled by the drain loop, which is the only one emitting
+                if (invalidRequest == null) {
+                    invalidRequest = new IllegalArgumentException("Rule 3.9: request must be positive, was " + n);
+                }
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            discard();
+        }
+
+        private void discard() {
+            buffer.clear();
+            buffered.set(0);
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        emit();
+                    }
+                });
+            }
+        }
+
+        private void emit() {
+            int missed = 1;
+            while (true) {
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && !cancelled && invalidRequest == null) {
+                    JSONObject record = buffer.poll();
+                    if (record == null) {
+                        break;
+                    }
+                    buffered.decrementAndGet();
+                    subscriber.onNext(record);
+                    emitted++;
+                }
+                if (emitted > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (cancelled) {
+                    return;
+                }
+                if (invalidRequest != null) {
+                    cancelled = true;
+                    discard();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                if (exhausted && buffer.isEmpty()) {
+                    cancelled = true;
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                maybeFetch();
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void maybeFetch() {
+            long wanted = Math.min(requested.get(), maxBuffered);
+            if (exhausted || buffered.get() >= wanted || !fetching.compareAndSet(false, true)) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch();
+                }
+            });
+        }
+
+        private void fetch() {
+            try {
+                if (!cancelled) {
+                    JSONArray page = pager.next();
+                    if (cancelled || invalidRequest != null) {
+                        return;
+                    }
+                    for (int i = 0; i < page.length(); i++) {
+                        buffer.add(page.getJSONObject(i));
+                    }
+                    buffered.addAndGet(page.length());
+                    if (!pager.hasNext()) {
+                        exhausted = true;
+                    }
+                }
+            } catch (Throwable ex) {
+                error = ex;
+                exhausted = true;
+            } finally {
+                fetching.set(false);
+            }
+            drain();
+        }
+
+        private final Subscriber<? super JSONObject> subscriber;
+        private final KeysetPager pager;
+        private final long maxBuffered;
+        private final ConcurrentLinkedQueue<JSONObject> buffer = new ConcurrentLinkedQueue<JSONObject>();
+        private final AtomicLong buffered = new AtomicLong();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean fetching = new AtomicBoolean();
+        private volatile boolean exhausted;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private volatile Throwable invalidRequest;
+    }
+
+    private final Insightly insightly;
+    private final InsightlyQuery query;
+    private final long pageSize;
+    private final Executor executor;
+    private int prefetchPages = DEFAULT_PREFETCH_PAGES;
+}
@@ -0,0 +1,325 @@
+package com.insightly;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Scans a large recordset by splitting a date or ID range into partitions
+ * and fetching the partitions concurrently.
+ * </p>
+ * <p>
+ * <p>
+ * Every partition is the base query restricted to its sub-range with OData filters,
+ * and is itself read with a {@link KeysetPager}, so partitions of any size are fetched completely.
+ * Ranges are half-open: records whose field value equals the upper bound are not returned,
+ * and records with no value in the partitioned field are never returned.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * PartitionedScan scan = PartitionedScan.byDate(i, InsightlyQuery.from(InsightlyEntity.EVENTS),
+ *         "START_DATE_UTC", from, to, 8);
+ * JSONArray events = scan.fetch(executor);
+ *
+ * // or process partitions on the common ForkJoin pool
+ * StreamSupport.stream(scan.spliterator(), true).forEach(...);
+ * }
+ * </pre>
+ */
+public class PartitionedScan {
+
+    public static final long DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Partitions {@code [from, to)} of a date field into equally sized sub-ranges
+     *
+     * @param insightly  client used to fetch the partitions
+     * @param query      base query; must not specify ordering, top or skip
+     * @param field      date field of the query's entity to partition on
+     * @param from       inclusive lower bound
+     * @param to         exclusive upper bound
+     * @param partitions number of partitions
+     */
+    public static PartitionedScan byDate(Insightly insightly, InsightlyQuery query, String field,
+                                         Date from, Date to, int partitions) {
+        if (query.getEntity().getFieldType(field) != InsightlyEntity.FieldType.DATE) {
+            throw new IllegalArgumentException(field + " is not a date field of " + query.getEntity());
+        }
+        checkPartitions(partitions);
+        // OData dates have second resolution, so partition bounds are aligned to whole seconds
+        long start = from.getTime() / 1000;
+        long end = to.getTime() / 1000;
+        if (end <= start) {
+            throw new IllegalArgumentException("Empty date range " + from + " - " + to);
+        }
+
+        List<Partition> list = new ArrayList<Partition>();
+        long previous = start;
+        for (int i = 1; i <= partitions; i++) {
+            long bound = (i == partitions) ? end : start + (end - start) * i / partitions;
+            if (bound > previous) {
+                InsightlyQuery partition = query.copy()
+                        .ge(field, new Date(previous * 1000))
+                        .lt(field, new Date(bound * 1000));
+                list.add(new Partition(partition, 0));
+                previous = bound;
+            }
+        }
+        return new PartitionedScan(insightly, list);
+    }
+
+    /**
+     * Partitions the inclusive ID range {@code [fromId, toId]} into equally sized sub-ranges
+     *
+     * @param insightly  client used to fetch the partitions
+     * @param query      base query; must not specify ordering, top or skip
+     * @param fromId     lowest ID to return
+     * @param toId       highest ID to return
+     * @param partitions number of partitions
+     */
+    public static PartitionedScan byId(Insightly insightly, InsightlyQuery query,
+                                       long fromId, long toId, int partitions) {
+        checkPartitions(partitions);
+        if (toId < fromId) {
+            throw new IllegalArgumentException("Empty ID range " + fromId + " - " + toId);
+        }
+        String idField = query.getEntity().getIdField();
+
+        List<Partition> list = new ArrayList<Partition>();
+        long span = toId - fromId + 1;
+        long previous = fromId;
+        for (int i = 1; i <= partitions; i++) {
+            long bound = (i == partitions) ? toId + 1 : fromId + span * i / partitions;
+            if (bound > previous) {
+                list.add(new Partition(query.copy().lt(idField, bound), previous - 1));
+                previous = bound;
+            }
+        }
+        return new PartitionedScan(insightly, list);
+    }
+
+    PartitionedScan(Insightly insightly, List<Partition> partitions) {
+        this.insightly = insightly;
+        this.partitions = Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * Sets the page size used within each partition
+     */
+    public PartitionedScan pageSize(long pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Fetches all partitions concurrently on the given executor and merges them in range order.
+     * If any partition fails, the remaining partitions are cancelled and the failure is rethrown.
+     *
+     * @param executor executor running one task per partition
+     */
+    public JSONArray fetch(ExecutorService executor) throws InsightlyException {
+        List<Future<List<JSONObject>>> futures = new ArrayList<Future<List<JSONObject>>>();
+        for (final Partition partition : partitions) {
+            futures.add(executor.submit(new Callable<List<JSONObject>>() {
+                @Override
+                public List<JSONObject> call() throws InsightlyException {
+                    return fetchPartition(partition);
+                }
+            }));
+        }
+
+        JSONArray merged = new JSONArray();
+        try {
+            for (Future<List<JSONObject>> future : futures) {
+                for (JSONObject record : future.get()) {
+                    merged.put(record);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while scanning partitions", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof InsightlyException) {
+                throw (InsightlyException) ex.getCause();
+            }
+            throw new InsightlyException("Partition scan failed", ex.getCause());
+        } finally {
+            for (Future<List<JSONObject>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Fetches only the record IDs of all partitions concurrently and collects them into a bitmap.
+     * Records are decoded lazily, so nothing but the ID field is ever parsed.
+     *
+     * @param executor executor running one task per partition
+     */
+    public IdBitmap fetchIds(ExecutorService executor) throws InsightlyException {
+        List<Future<IdBitmap>> futures = new ArrayList<Future<IdBitmap>>();
+        for (final Partition partition : partitions) {
+            futures.add(executor.submit(new Callable<IdBitmap>() {
+                @Override
+                public IdBitmap call() throws InsightlyException {
+                    IdBitmap ids = new IdBitmap();
+                    KeysetPager pager = insightly.keysetPager(partition.query, pageSize, partition.after);
+                    while (pager.hasNext()) {
+                        ids.addAll(pager.nextIds());
+                    }
+                    return ids;
+                }
+            }));
+        }
+
+        IdBitmap merged = new IdBitmap();
+        try {
+            for (Future<IdBitmap> future : futures) {
+                merged = merged.or(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while scanning partitions", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof InsightlyException) {
+                throw (InsightlyException) ex.getCause();
+            }
+            throw new InsightlyException("Partition scan failed", ex.getCause());
+        } finally {
+            for (Future<IdBitmap> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns a spliterator over all records that splits along partition boundaries,
+     * so {@code StreamSupport.stream(scan.spliterator(), true)} fetches partitions in parallel.
+     * Failures are thrown as {@link UncheckedInsightlyException}.
+     */
+    public Spliterator<JSONObject> spliterator() {
+        return new PartitionSpliterator(0, partitions.size());
+    }
+
+    private List<JSONObject> fetchPartition(Partition partition) throws InsightlyException {
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        KeysetPager pager = insightly.keysetPager(partition.query, pageSize, partition.after);
+        while (pager.hasNext()) {
+            JSONArray page = pager.next();
+            for (int i = 0; i < page.length(); i++) {
+                records.add(page.getJSONObject(i));
+            }
+        }
+        return records;
+    }
+
+    private static void checkPartitions(int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive, was " + partitions);
+        }
+    }
+
+    static class Partition {
+        Partition(InsightlyQuery query, long after) {
+            this.query = query;
+            this.after = after;
+        }
+
+        final InsightlyQuery query;
+        final long after;
+    }
+
+    private class PartitionSpliterator implements Spliterator<JSONObject> {
+        PartitionSpliterator(int from, int to) {
+            this.next = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super JSONObject> action) {
+            while (page == null || index >= page.length()) {
+                if (pager != null && pager.hasNext()) {
+                    fetchPage();
+                } else if (next < to) {
+                    Partition partition = partitions.get(next++);
+                    pager = insightly.keysetPager(partition.query, pageSize, partition.after);
+                    fetchPage();
+                } else {
+                    return false;
+                }
+            }
+            action.accept(page.getJSONObject(index++));
+            return true;
+        }
+
+        @Override
+        public Spliterator<JSONObject> trySplit() {
+            int remaining = to - next;
+            if (remaining < 2) {
+                return null;
+            }
+            int middle = next + remaining / 2;
+            PartitionSpliterator prefix = new PartitionSpliterator(next, middle);
+            if (pager != null) {
+                // hand the partition in progress to the prefix so ordering is preserved
+                prefix.pager = pager;
+                prefix.page = page;
+                prefix.index = index;
+                pager = null;
+                page = null;
+            }
+            next = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        private void fetchPage() {
+            try {
+                page = pager.next();
+                index = 0;
+            } catch (InsightlyException ex) {
+                throw new UncheckedInsightlyException(ex);
+            }
+        }
+
+        private int next;
+        private final int to;
+        private KeysetPager pager;
+        private JSONArray page;
+        private int index;
+    }
+
+    private final Insightly insightly;
+    private final List<Partition> partitions;
+    private long pageSize = DEFAULT_PAGE_SIZE;
+}
@@ -0,0 +1,210 @@
+package com.insightly;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Interceptor that orders requests by {@link InsightlyRequest.Priority} within a shared concurrency and rate budget.
+ * </p>
+ * <p>
+ * <p>
+ * At most {@code capacity} requests are in flight. When a slot frees up, a queued {@code INTERACTIVE} request
+ * is always admitted before queued {@code BACKGROUND} requests, so user facing lookups do not wait behind bulk work.
+ * To keep background work from starving, a background request that has been queued for longer than the
+ * starvation threshold is admitted ahead of interactive requests.
+ * With a {@link RateLimiter}, a request is admitted only once a permit is available, and permits go to queued
+ * requests in the same order as slots, so admitted requests never hold a slot while waiting for the rate limit.
+ * A request whose deadline passes while it is queued fails with an {@link InsightlyException}.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Insightly interactive = new Insightly(apikey).addInterceptor(new PriorityScheduler(8));
+ * Insightly background = interactive.withPriority(InsightlyRequest.Priority.BACKGROUND);
+ * }
+ * </pre>
+ */
+public class PriorityScheduler implements InsightlyInterceptor {
+
+    public static final long DEFAULT_STARVATION_THRESHOLD_MILLIS = 5000;
+
+    /**
+     * @param capacity maximum number of requests in flight
+     */
+    public PriorityScheduler(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity    maximum number of requests in flight
+     * @param rateLimiter rate limit shared by all priorities, or {@code null}
+     */
+    public PriorityScheduler(int capacity, RateLimiter rateLimiter) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.rateLimiter = rateLimiter;
+        for (InsightlyRequest.Priority priority : InsightlyRequest.Priority.values()) {
+            queues.put(priority, new ArrayDeque<Waiter>());
+        }
+    }
+
+    /**
+     * Sets how long a background request may be overtaken by interactive requests
+     */
+    public PriorityScheduler starvationThreshold(long threshold, TimeUnit unit) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative, was " + threshold);
+        }
+        this.starvationThresholdNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    @Override
+    public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+        acquire(request.getPriority(), request.effectiveDeadline());
+        try {
+            return chain.proceed(request);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Number of requests of the given priority waiting for a slot
+     */
+    public int getQueued(InsightlyRequest.Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the request is granted a slot and, with a rate limiter, a permit
+     *
+     * @param deadline deadline of the request, or {@code null}
+     */
+    void acquire(InsightlyRequest.Priority priority, Deadline deadline) throws InsightlyException {
+        lock.lock();
+        try {
+            if (waiting == 0 && inFlight < capacity && (rateLimiter == null || rateLimiter.tryAcquire())) {
+                inFlight++;
+                return;
+            }
+            ArrayDeque<Waiter> queue = queues.get(priority);
+            Waiter waiter = new Waiter(lock.newCondition(), System.nanoTime());
+            queue.add(waiter);
+            waiting++;
+            dispatch();
+            try {
+                while (!waiter.granted) {
+                    long nanos = Long.MAX_VALUE;
+                    if (deadline != null) {
+                        nanos = deadline.remaining(TimeUnit.NANOSECONDS);
+                        if (nanos <= 0) {
+                            abandon(queue, waiter);
+                            throw InsightlyRequest.deadlineExceeded(null);
+                        }
+                    }
+                    long permitWait = rateLimiter != null ? rateLimiter.nanosUntilAvailable() : 0;
+                    if (permitWait > 0) {
+                        // nobody signals when a permit becomes due, so check back then
+                        waiter.condition.awaitNanos(Math.min(permitWait, nanos));
+                    } else if (inFlight >= capacity) {
+                        if (nanos == Long.MAX_VALUE) {
+                            waiter.condition.await();
+                        } else {
+                            waiter.condition.awaitNanos(nanos);
+                        }
+                    }
+                    dispatch();
+                }
+            } catch (InterruptedException ex) {
+                abandon(queue, waiter);
+                Thread.currentThread().interrupt();
+                throw new InsightlyException("Interrupted while waiting for a request slot", ex);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up waiting, returning the slot if it was granted in the meantime
+     */
+    private void abandon(ArrayDeque<Waiter> queue, Waiter waiter) {
+        if (waiter.granted) {
+            release();
+        } else {
+            queue.remove(waiter);
+            waiting--;
+        }
+    }
+
+    private void dispatch() {
+        ArrayDeque<Waiter> interactive = queues.get(InsightlyRequest.Priority.INTERACTIVE);
+        ArrayDeque<Waiter> background = queues.get(InsightlyRequest.Priority.BACKGROUND);
+        while (inFlight < capacity && waiting > 0 && (rateLimiter == null || rateLimiter.tryAcquire())) {
+            Waiter next;
+            Waiter oldestBackground = background.peek();
+            if (oldestBackground != null
+                    && (interactive.isEmpty() || System.nanoTime() - oldestBackground.queuedAt >= starvationThresholdNanos)) {
+                next = background.poll();
+            } else {
+                next = interactive.poll();
+            }
+            waiting--;
+            inFlight++;
+            next.granted = true;
+            next.condition.signal();
+        }
+    }
+
+    private static final class Waiter {
+        Waiter(Condition condition, long queuedAt) {
+            this.condition = condition;
+            this.queuedAt = queuedAt;
+        }
+
+        final Condition condition;
+        final long queuedAt;
+        boolean granted;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final RateLimiter rateLimiter;
+    private final Map<InsightlyRequest.Priority, ArrayDeque<Waiter>> queues =
+            new EnumMap<InsightlyRequest.Priority, ArrayDeque<Waiter>>(InsightlyRequest.Priority.class);
+    private long starvationThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STARVATION_THRESHOLD_MILLIS);
+    private int inFlight;
+    private int waiting;
+}
@@ -0,0 +1,148 @@
+package com.insightly;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Token bucket rate limiter.
+ * </p>
+ * <p>
+ * <p>
+ * Permits are issued at a fixed rate with bursts up to the bucket size.
+ * A caller that finds the bucket empty reserves the next permit and sleeps until it is due,
+ * so waiting callers are served in arrival order without holding the lock while they sleep.
+ * Can be used on its own as an interceptor, throttling every request of a client.
+ * </p>
+ */
+public class RateLimiter implements InsightlyInterceptor {
+
+    /**
+     * @param permitsPerSecond sustained rate
+     * @param burst            maximum number of permits that can be issued at once
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive, was " + permitsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1, was " + burst);
+        }
+        this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    @Override
+    public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+        acquire(request.effectiveDeadline());
+        return chain.proceed(request);
+    }
+
+    /**
+     * Takes a permit, waiting until one is available
+     */
+    public void acquire() throws InsightlyException {
+        sleep(reserve());
+    }
+
+    /**
+     * Takes a permit, waiting until one is available. Fails right away, without taking a permit,
+     * if the permit would only be available after the deadline.
+     *
+     * @param deadline deadline of the request, or {@code null} to wait as long as needed
+     * @throws InsightlyException if the deadline would pass before a permit is available
+     */
+    public void acquire(Deadline deadline) throws InsightlyException {
+        if (deadline == null) {
+            acquire();
+            return;
+        }
+        long waitNanos = reserve(deadline.remaining(TimeUnit.NANOSECONDS));
+        if (waitNanos < 0) {
+            throw InsightlyRequest.deadlineExceeded(null);
+        }
+        sleep(waitNanos);
+    }
+
+    private static void sleep(long waitNanos) throws InsightlyException {
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InsightlyException("Interrupted while waiting for a rate limit permit", ex);
+            }
+        }
+    }
+
+    /**
+     * Takes a permit if one is available right now
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            refill();
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves a permit and returns how long the caller has to wait before using it
+     */
+    long reserve() {
+        return reserve(Long.MAX_VALUE);
+    }
+
+    /**
+     * Reserves a permit if it is available within {@code maxWaitNanos}
+     *
+     * @return how long the caller has to wait before using the permit, or -1 if no permit was reserved
+     */
+    long reserve(long maxWaitNanos) {
+        lock.lock();
+        try {
+            refill();
+            long waitNanos = tokens >= 1 ? 0 : (long) ((1 - tokens) * nanosPerPermit);
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+            tokens -= 1;
+            return waitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Time until {@link #tryAcquire()} can succeed, 0 if a permit is available now
+     */
+    long nanosUntilAvailable() {
+        lock.lock();
+        try {
+            refill();
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerPermit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / nanosPerPermit);
+        lastRefill = now;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double nanosPerPermit;
+    private final int burst;
+    private double tokens;
+    private long lastRefill;
+}
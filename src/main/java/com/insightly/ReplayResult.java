@@ -0,0 +1,59 @@
+package com.insightly;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Outcome of {@link WriteJournal#replay(java.util.concurrent.ExecutorService)}.
+ * </p>
+ */
+public class ReplayResult {
+
+    ReplayResult(int replayed, List<JSONObject> rejected, int pending) {
+        this.replayed = replayed;
+        this.rejected = Collections.unmodifiableList(rejected);
+        this.pending = pending;
+    }
+
+    /**
+     * Number of operations sent successfully
+     */
+    public int getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * Operations the server refused with a client error; they are removed from the journal and not retried.
+     * Each is an object with {@code op} ({@code "write"} or {@code "delete"}), {@code entity}, {@code record} or
+     * {@code id}, and {@code error}, the message of the failure.
+     */
+    public List<JSONObject> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Number of operations still in the journal, because the server became unreachable or unavailable again
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Whether the journal was replayed completely
+     */
+    public boolean isComplete() {
+        return pending == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayResult[replayed=" + replayed + ", rejected=" + rejected.size() + ", pending=" + pending + "]";
+    }
+
+    private final int replayed;
+    private final List<JSONObject> rejected;
+    private final int pending;
+}
@@ -0,0 +1,114 @@
+package com.insightly;
+
+/**
+ * <p>
+ * Bounded table that deduplicates the strings decoded from responses.
+ * </p>
+ * <p>
+ * <p>
+ * Every record of a large recordset repeats the same field names ({@code "CONTACT_ID"}, {@code "CUSTOMFIELD_ID"})
+ * and many of the same short values (country names, tag names, currency codes). With a table set through
+ * {@link Insightly#setStringTable(StringTable)}, responses are decoded so that equal keys and short values
+ * share a single {@link String} instance, which shrinks the heap held by large in-memory snapshots.
+ * </p>
+ * <p>
+ * <p>
+ * The table is a fixed size, direct mapped cache: a string is looked up by hashing the characters in place,
+ * so a hit allocates nothing, and a miss replaces whatever was cached in the slot. Frequent strings therefore
+ * stay resident while rare ones come and go, and the table never grows beyond {@code capacity} entries.
+ * Values longer than {@code maxLength} (names, e-mail addresses, notes) are rarely repeated and are never cached.
+ * The table is safe to share between threads and clients.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * Insightly i = new Insightly(apikey).setStringTable(new StringTable());
+ * }
+ * </pre>
+ */
+public class StringTable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    public static final int DEFAULT_MAX_LENGTH = 48;
+
+    public StringTable() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param capacity  number of cached strings, rounded up to a power of two
+     * @param maxLength longest value that is cached; keys are cached regardless of length
+     */
+    public StringTable(int capacity, int maxLength) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength must not be negative, was " + maxLength);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new String[size];
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Returns the cached instance equal to the string, caching the string if it is short enough
+     */
+    public String intern(String value) {
+        if (value.length() > maxLength) {
+            return value;
+        }
+        return lookup(value, 0, value.length(), value);
+    }
+
+    /**
+     * Returns the cached instance equal to the characters {@code source[start, end)},
+     * without allocating if it is already cached
+     */
+    public String intern(String source, int start, int end) {
+        if (end - start > maxLength) {
+            return source.substring(start, end);
+        }
+        return lookup(source, start, end, null);
+    }
+
+    /**
+     * Same as {@link #intern(String, int, int)}, ignoring {@code maxLength}; used for field names
+     */
+    String internKey(String source, int start, int end) {
+        return lookup(source, start, end, null);
+    }
+
+    String internKey(String key) {
+        return lookup(key, 0, key.length(), key);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    private String lookup(String source, int start, int end, String value) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (slots.length - 1);
+        // Strings are immutable, so a racy read sees either a complete string or a stale one; either is safe
+        String cached = slots[slot];
+        int length = end - start;
+        if (cached != null && cached.length() == length && cached.regionMatches(0, source, start, length)) {
+            return cached;
+        }
+        if (value == null) {
+            value = source.substring(start, end);
+        }
+        slots[slot] = value;
+        return value;
+    }
+
+    private final String[] slots;
+    private final int maxLength;
+}
@@ -0,0 +1,64 @@
+package com.insightly;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Connect, read and overall timeouts for requests.
+ * </p>
+ * <p>
+ * <p>
+ * The connect timeout bounds establishing the connection (and waiting for a pooled one), the read timeout bounds
+ * each wait for data from the server, and the overall timeout bounds the whole request, after which it is aborted.
+ * A value of 0 leaves the corresponding limit to the global Unirest settings.
+ * </p>
+ */
+public final class Timeouts {
+
+    public static final Timeouts DEFAULT = new Timeouts(0, 0, 0);
+
+    /**
+     * @param connect connect timeout, 0 for the Unirest default
+     * @param read    read (socket) timeout, 0 for the Unirest default
+     * @param overall overall timeout per request, 0 for none
+     * @param unit    unit of the timeouts
+     */
+    public static Timeouts of(long connect, long read, long overall, TimeUnit unit) {
+        return new Timeouts(unit.toMillis(connect), unit.toMillis(read), unit.toMillis(overall));
+    }
+
+    private Timeouts(long connectMillis, long readMillis, long overallMillis) {
+        if (connectMillis < 0 || readMillis < 0 || overallMillis < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        if (connectMillis > Integer.MAX_VALUE || readMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Connect and read timeouts must fit in an int of milliseconds");
+        }
+        this.connectMillis = connectMillis;
+        this.readMillis = readMillis;
+        this.overallMillis = overallMillis;
+    }
+
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    public long getReadMillis() {
+        return readMillis;
+    }
+
+    public long getOverallMillis() {
+        return overallMillis;
+    }
+
+    /**
+     * Whether all limits are left to the Unirest defaults
+     */
+    public boolean isDefault() {
+        return connectMillis == 0 && readMillis == 0 && overallMillis == 0;
+    }
+
+    private final long connectMillis;
+    private final long readMillis;
+    private final long overallMillis;
+}
@@ -0,0 +1,19 @@
+package com.insightly;
+
+/**
+ * Wraps an {@link InsightlyException} where a checked exception cannot be thrown,
+ * e.g. from a {@link java.util.Spliterator} or a {@link Runnable}.
+ */
+public class UncheckedInsightlyException extends RuntimeException {
+
+    public UncheckedInsightlyException(InsightlyException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public InsightlyException getCause() {
+        return (InsightlyException) super.getCause();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,47 @@
+package com.insightly;
+
+import org.json.JSONArray;
+
+/**
+ * <p>
+ * Outcome of {@link Insightly#upsertAll(InsightlyEntity, JSONArray, ChangeTracker)}:
+ * the records written, as returned by the server, and the IDs of the records skipped because they were unchanged.
+ * </p>
+ */
+public class UpsertResult {
+
+    UpsertResult(JSONArray written, LongSet skipped) {
+        this.written = written;
+        this.skipped = skipped;
+    }
+
+    /**
+     * Records created or updated, as returned by the server
+     */
+    public JSONArray getWritten() {
+        return written;
+    }
+
+    public int getWrittenCount() {
+        return written.length();
+    }
+
+    /**
+     * IDs of the records that were not written because they matched the last known server state
+     */
+    public LongSet getSkipped() {
+        return skipped;
+    }
+
+    public int getSkippedCount() {
+        return skipped.size();
+    }
+
+    @Override
+    public String toString() {
+        return "UpsertResult[written=" + written.length() + ", skipped=" + skipped.size() + "]";
+    }
+
+    private final JSONArray written;
+    private final LongSet skipped;
+}
@@ -0,0 +1,348 @@
+package com.insightly;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Buffers updates of existing records and writes only the latest state of each record once per window.
+ * </p>
+ * <p>
+ * <p>
+ * The first update of a record starts its window; further updates of the same record within the window replace the
+ * buffered state, and when the window ends the record is written once with a {@code PUT}. A record moved through
+ * several stages and then edited within a few seconds thus costs one request instead of many.
+ * Since {@code PUT} replaces the whole record, every update must carry the complete record, as with
+ * {@link Insightly#addOpportunity(JSONObject)}.
+ * </p>
+ * <p>
+ * <p>
+ * Different records are written concurrently when the scheduler has several threads, but each record is written
+ * by one thread at a time, so writes of the same record are never reordered. {@link #flush()} writes all
+ * buffered records immediately and {@link #close()} flushes before releasing the buffer. Writes made in the
+ * background cannot throw to the caller; their failures are collected and thrown by the next {@code flush()} or
+ * {@code close()}, and the failed updates are dropped.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * WriteBehindBuffer buffer = new WriteBehindBuffer(i, 2, TimeUnit.SECONDS);
+ * buffer.update(InsightlyEntity.OPPORTUNITIES, opportunity);
+ * ...
+ * buffer.close();
+ * }
+ * </pre>
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+
+    /**
+     * Creates a buffer with its own daemon thread for background writes
+     *
+     * @param insightly client the records are written with
+     * @param window    time an update is held back, waiting for newer updates of the same record
+     */
+    public WriteBehindBuffer(Insightly insightly, long window, TimeUnit unit) {
+        this(insightly, window, unit, newScheduler(), true);
+    }
+
+    /**
+     * Creates a buffer writing in the background on the given scheduler, which is not shut down on close
+     *
+     * @param insightly client the records are written with
+     * @param window    time an update is held back, waiting for newer updates of the same record
+     * @param scheduler scheduler running the background writes
+     */
+    public WriteBehindBuffer(Insightly insightly, long window, TimeUnit unit, ScheduledExecutorService scheduler) {
+        this(insightly, window, unit, scheduler, false);
+    }
+
+    private WriteBehindBuffer(Insightly insightly, long window, TimeUnit unit,
+                              ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative, was " + window);
+        }
+        this.insightly = insightly;
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    /**
+     * Buffers the latest state of an existing record
+     *
+     * @param entity entity the record belongs to
+     * @param record complete record; its ID field must be set. It is written as it is at write time,
+     *               so do not modify it after passing it in.
+     * @throws IllegalArgumentException if the record has no ID; new records cannot be coalesced
+     * @throws IllegalStateException    if the buffer is closed
+     */
+    public void update(InsightlyEntity entity, JSONObject record) {
+        long id = record.optLong(entity.getIdField(), 0);
+        if (id <= 0) {
+            throw new IllegalArgumentException("Only existing records can be buffered; " + entity.getIdField() + " is not set");
+        }
+        final Key key = new Key(entity, id);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+            if (pending.put(key, record) != null) {
+                coalesced++;
+                return;
+            }
+            // scheduled under the lock, so close() cannot shut the scheduler down in between
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeQuietly(key);
+                    }
+                }, windowNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // a scheduler shut down by its owner; the record stays pending for flush() or close()
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all buffered records now
+     *
+     * @throws InsightlyException if a write failed, including background writes since the last flush;
+     *                            further failures are attached as suppressed exceptions
+     */
+    public void flush() throws InsightlyException {
+        List<Key> keys;
+        lock.lock();
+        try {
+            keys = new ArrayList<Key>(pending.keySet());
+        } finally {
+            lock.unlock();
+        }
+        for (Key key : keys) {
+            writeQuietly(key);
+        }
+        // wait for background writes still in progress, so their failures are not missed
+        awaitWrites();
+        throwFailures();
+    }
+
+    /**
+     * Flushes the buffer and stops accepting updates
+     *
+     * @throws InsightlyException if a write failed, see {@link #flush()}
+     */
+    @Override
+    public void close() throws InsightlyException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush();
+        } finally {
+            if (ownsScheduler) {
+                shutdown();
+            }
+        }
+    }
+
+    private void shutdown() throws InsightlyException {
+        // windows still scheduled have nothing left to write and are dropped, see newScheduler()
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while waiting for background writes", ex);
+        }
+    }
+
+    /**
+     * Number of records waiting to be written
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of updates that replaced a buffered update and so saved a request
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of records written
+     */
+    public long getWrittenCount() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeQuietly(Key key) {
+        JSONObject record;
+        lock.lock();
+        try {
+            // one writer per record, so a newer state of a record is never overtaken by an older one
+            while (writing.contains(key)) {
+                try {
+                    writeDone.await();
+                } catch (InterruptedException ex) {
+                    // the record stays pending for flush() or close()
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            record = pending.remove(key);
+            if (record == null) {
+                return;
+            }
+            writing.add(key);
+        } finally {
+            lock.unlock();
+        }
+        boolean done = false;
+        InsightlyException failure = null;
+        try {
+            insightly.write(key.entity, record);
+            done = true;
+        } catch (InsightlyException ex) {
+            failure = ex;
+        } finally {
+            lock.lock();
+            try {
+                writing.remove(key);
+                if (done) {
+                    written++;
+                } else if (failure != null) {
+                    failures.add(failure);
+                }
+                writeDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void awaitWrites() throws InsightlyException {
+        lock.lock();
+        try {
+            // only the writes in progress now; later ones must not hold up this flush
+            Set<Key> inProgress = new HashSet<Key>(writing);
+            while (!Collections.disjoint(writing, inProgress)) {
+                writeDone.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InsightlyException("Interrupted while waiting for background writes", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void throwFailures() throws InsightlyException {
+        List<InsightlyException> thrown;
+        lock.lock();
+        try {
+            if (failures.isEmpty()) {
+                return;
+            }
+            thrown = new ArrayList<InsightlyException>(failures);
+            failures.clear();
+        } finally {
+            lock.unlock();
+        }
+        InsightlyException first = thrown.get(0);
+        for (int i = 1; i < thrown.size(); i++) {
+            first.addSuppressed(thrown.get(i));
+        }
+        throw first;
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "insightly-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return scheduler;
+    }
+
+    private static final class Key {
+        Key(InsightlyEntity entity, long id) {
+            this.entity = entity;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return entity == other.entity && id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * entity.hashCode() + (int) (id ^ (id >>> 32));
+        }
+
+        final InsightlyEntity entity;
+        final long id;
+    }
+
+    private final Insightly insightly;
+    private final long windowNanos;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writeDone = lock.newCondition();
+    private final Set<Key> writing = new HashSet<Key>();
+    private final Map<Key, JSONObject> pending = new HashMap<Key, JSONObject>();
+    private final List<InsightlyException> failures = new ArrayList<InsightlyException>();
+    private long coalesced;
+    private long written;
+    private boolean closed;
+}
@@ -0,0 +1,613 @@
+package com.insightly;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Durable journal of writes that could not be sent because the API was unreachable.
+ * </p>
+ * <p>
+ * <p>
+ * {@link #write(InsightlyEntity, JSONObject)} and {@link #delete(InsightlyEntity, long)} send the operation right
+ * away while the journal is empty. If the server cannot be reached ({@link InsightlyException#isUnreachable()}),
+ * or earlier operations are still waiting, the operation is appended to the journal instead and the call returns
+ * as soon as it is on disk, so callers keep their throughput during an outage and no write is lost.
+ * Operations on an existing record hold a lock on that record from the check of the journal until they are sent or
+ * journaled, and replay holds it while sending each operation, so a direct send never overtakes a journaled
+ * operation on the record or is overtaken by one. Creates take no lock, as they cannot conflict with anything.
+ * Once the API is reachable again, {@link #replay(ExecutorService)} sends the journaled operations in order.
+ * </p>
+ * <p>
+ * <p>
+ * The journal is a single memory mapped file. Appends are copied into the mapping and made durable with one
+ * {@code fsync} shared by all appends that arrived while the previous {@code fsync} was running, so concurrent
+ * writers pay for far fewer syncs than writes. Every entry carries a CRC; an entry torn by a crash is
+ * discarded when the journal is reopened, together with anything after it.
+ * </p>
+ * <p>
+ * <p>
+ * Replay reads the journal in batches. Within a batch, operations on different records are sent concurrently
+ * and operations on the same record one after another, in journal order. Operations refused with a client error
+ * are dropped and reported in the {@link ReplayResult}; if the server is unreachable or unavailable again,
+ * replay stops and the remaining operations stay in the journal. Operations are marked as done as they succeed
+ * and the marks are synced after every batch, so after a crash at most the operations of the last batch
+ * are sent again.
+ * </p>
+ * <p>
+ * <pre>
+ * {@code
+ * WriteJournal journal = WriteJournal.open(i, Paths.get("insightly.journal"));
+ * journal.write(InsightlyEntity.CONTACTS, contact);
+ * ...
+ * if (journal.getPendingCount() > 0) {
+ *     journal.replay(executor);
+ * }
+ * }
+ * </pre>
+ */
+public class WriteJournal implements AutoCloseable {
+
+    public static final int DEFAULT_INITIAL_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_REPLAY_BATCH_SIZE = 256;
+
+    /**
+     * Opens the journal file, creating it if it does not exist
+     *
+     * @param insightly client the operations are sent with
+     * @param file      journal file
+     * @throws IOException if the file is not a write journal or is in use by another process or journal
+     */
+    public static WriteJournal open(Insightly insightly, Path file) throws IOException {
+        FileChannel channel = openLocked(file);
+        boolean opened = false;
+        try {
+            WriteJournal journal = new WriteJournal(insightly, channel);
+            opened = true;
+            return journal;
+        } finally {
+            if (!opened) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the file and locks it for as long as the channel is open, since a second writer would corrupt the log
+     */
+    private static FileChannel openLocked(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean locked = false;
+        try {
+            locked = channel.tryLock() != null;
+        } catch (OverlappingFileLockException ex) {
+            // locked by another journal of this process
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+        if (!locked) {
+            throw new IOException(file + " is locked by another process or already open");
+        }
+        return channel;
+    }
+
+    private WriteJournal(Insightly insightly, FileChannel channel) throws IOException {
+        this.insightly = insightly;
+        this.channel = channel;
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Journal file is too large: " + size);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, DEFAULT_INITIAL_SIZE));
+        if (size < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+            if (size >= HEADER_SIZE && buffer.getLong(0) != 0) {
+                throw new IOException("Not an Insightly write journal");
+            }
+            buffer.putLong(0, MAGIC);
+            writeHeader(1, HEADER_SIZE);
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.force();
+        }
+        generation = buffer.getInt(8);
+        replayOffset = buffer.getInt(12);
+        recover();
+    }
+
+    /**
+     * Sets the number of operations read from the journal per replay batch
+     */
+    public WriteJournal replayBatchSize(int replayBatchSize) {
+        if (replayBatchSize < 1) {
+            throw new IllegalArgumentException("replayBatchSize must be at least 1, was " + replayBatchSize);
+        }
+        this.replayBatchSize = replayBatchSize;
+        return this;
+    }
+
+    /**
+     * Creates or updates the record, or journals the write if the server is unreachable
+     * or earlier operations are still journaled
+     *
+     * @return the record as stored on the server, or {@code null} if the write was journaled
+     */
+    public JSONObject write(InsightlyEntity entity, JSONObject record) throws InsightlyException {
+        ReentrantLock recordLock = recordLock(entity, record);
+        lock(recordLock);
+        try {
+            if (getPendingCount() == 0) {
+                try {
+                    return insightly.write(entity, record);
+                } catch (InsightlyException ex) {
+                    if (!ex.isUnreachable()) {
+                        throw ex;
+                    }
+                }
+            }
+            appendWrite(entity, record);
+            return null;
+        } finally {
+            unlock(recordLock);
+        }
+    }
+
+    /**
+     * Deletes the record, or journals the deletion if the server is unreachable
+     * or earlier operations are still journaled
+     *
+     * @return whether the record was deleted right away
+     */
+    public boolean delete(InsightlyEntity entity, long id) throws InsightlyException {
+        ReentrantLock recordLock = recordLock(key(entity, id));
+        lock(recordLock);
+        try {
+            if (getPendingCount() == 0) {
+                try {
+                    insightly.delete(entity, id);
+                    return true;
+                } catch (InsightlyException ex) {
+                    if (!ex.isUnreachable()) {
+                        throw ex;
+                    }
+                }
+            }
+            appendDelete(entity, id);
+            return false;
+        } finally {
+            unlock(recordLock);
+        }
+    }
+
+    /**
+     * Appends a create or update to the journal without trying to send it
+     */
+    public void appendWrite(InsightlyEntity entity, JSONObject record) throws InsightlyException {
+        ReentrantLock recordLock = recordLock(entity, record);
+        lock(recordLock);
+        try {
+            append(new JSONObject().put("op", WRITE).put("entity", entity.name()).put("record", record));
+        } finally {
+            unlock(recordLock);
+        }
+    }
+
+    /**
+     * Appends a deletion to the journal without trying to send it
+     */
+    public void appendDelete(InsightlyEntity entity, long id) throws InsightlyException {
+        ReentrantLock recordLock = recordLock(key(entity, id));
+        lock(recordLock);
+        try {
+            append(new JSONObject().put("op", DELETE).put("entity", entity.name()).put("id", id));
+        } finally {
+            unlock(recordLock);
+        }
+    }
+
+    /**
+     * Sends the journaled operations in order, see the class description
+     *
+     * @param executor executor sending operations on different records concurrently
+     */
+    public ReplayResult replay(ExecutorService executor) throws InsightlyException {
+        replayLock.lock();
+        try {
+            final AtomicInteger replayed = new AtomicInteger();
+            List<JSONObject> rejected = new ArrayList<JSONObject>();
+            while (true) {
+                List<Entry> batch = readBatch();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                Map<String, List<Entry>> byRecord = new LinkedHashMap<String, List<Entry>>();
+                for (Entry entry : batch) {
+                    List<Entry> entries = byRecord.get(entry.key);
+                    if (entries == null) {
+                        entries = new ArrayList<Entry>();
+                        byRecord.put(entry.key, entries);
+                    }
+                    entries.add(entry);
+                }
+
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (final List<Entry> entries : byRecord.values()) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws InsightlyException {
+                            replay(entries, replayed);
+                            return null;
+                        }
+                    }));
+                }
+                InsightlyException stopped = null;
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InsightlyException("Interrupted while replaying the journal", ex);
+                    } catch (ExecutionException ex) {
+                        if (!(ex.getCause() instanceof InsightlyException)) {
+                            throw new InsightlyException("Replay failed", ex.getCause());
+                        }
+                        stopped = (InsightlyException) ex.getCause();
+                    }
+                }
+                for (Entry entry : batch) {
+                    if (entry.rejection != null) {
+                        rejected.add(new JSONObject(entry.operation.toString()).put("error", entry.rejection));
+                    }
+                }
+                compact();
+                if (stopped != null) {
+                    break;
+                }
+            }
+            return new ReplayResult(replayed.get(), rejected, getPendingCount());
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    /**
+     * Number of operations waiting in the journal
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void replay(List<Entry> entries, AtomicInteger replayed) throws InsightlyException {
+        for (Entry entry : entries) {
+            ReentrantLock recordLock = entry.isNew() ? null : recordLock(entry.key);
+            lock(recordLock);
+            try {
+                replay(entry, replayed);
+            } finally {
+                unlock(recordLock);
+            }
+        }
+    }
+
+    private void replay(Entry entry, AtomicInteger replayed) throws InsightlyException {
+        InsightlyEntity entity = InsightlyEntity.valueOf(entry.operation.getString("entity"));
+        try {
+            if (WRITE.equals(entry.operation.getString("op"))) {
+                insightly.write(entity, entry.operation.getJSONObject("record"));
+            } else {
+                try {
+                    insightly.delete(entity, entry.operation.getLong("id"));
+                } catch (InsightlyException ex) {
+                    // already deleted
+                    if (!ex.hasResponse() || ex.getResponse().getStatus() != 404) {
+                        throw ex;
+                    }
+                }
+            }
+            replayed.incrementAndGet();
+        } catch (InsightlyException ex) {
+            if (ex.isUnreachable() || ex.isServerError() || ex.isRateLimited() || !ex.hasResponse()) {
+                // leave this and later operations on the record for the next replay
+                throw ex;
+            }
+            entry.rejection = ex.getMessage();
+        }
+        markDone(entry);
+    }
+
+    /**
+     * Lock of an existing record, or {@code null} for a new record, which is independent of every other operation
+     */
+    private ReentrantLock recordLock(InsightlyEntity entity, JSONObject record) {
+        long id = record.optLong(entity.getIdField(), 0);
+        return id > 0 ? recordLock(key(entity, id)) : null;
+    }
+
+    private ReentrantLock recordLock(String key) {
+        return recordLocks[(key.hashCode() & Integer.MAX_VALUE) % recordLocks.length];
+    }
+
+    private static void lock(ReentrantLock recordLock) {
+        if (recordLock != null) {
+            recordLock.lock();
+        }
+    }
+
+    private static void unlock(ReentrantLock recordLock) {
+        if (recordLock != null) {
+            recordLock.unlock();
+        }
+    }
+
+    private static ReentrantLock[] newRecordLocks() {
+        ReentrantLock[] locks = new ReentrantLock[RECORD_LOCKS];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private static String key(InsightlyEntity entity, long id) {
+        return entity.name() + ":" + id;
+    }
+
+    private void append(JSONObject operation) throws InsightlyException {
+        byte[] payload = operation.toString().getBytes(UTF_8);
+        long sequence;
+        lock.lock();
+        try {
+            if (!channel.isOpen()) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            int size = ENTRY_HEADER_SIZE + payload.length;
+            // keep room for the zero length that terminates the journal
+            ensureCapacity(writeOffset + size + 4);
+            int offset = writeOffset;
+            buffer.putInt(offset + 4, generation);
+            buffer.putInt(offset + 8, crc(generation, payload));
+            buffer.put(offset + 12, PENDING);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + ENTRY_HEADER_SIZE);
+            view.put(payload);
+            buffer.putInt(offset + size, 0);
+            // the length is written last, so a torn entry is never taken for a complete one
+            buffer.putInt(offset, payload.length);
+            writeOffset = offset + size;
+            pending++;
+            sequence = ++appended;
+        } catch (IOException ex) {
+            throw new InsightlyException("Cannot append to the write journal", ex);
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Group commit: a single force covers every append made before it started
+     */
+    private void sync(long sequence) {
+        syncLock.lock();
+        try {
+            if (synced >= sequence) {
+                return;
+            }
+            MappedByteBuffer current;
+            long target;
+            lock.lock();
+            try {
+                current = buffer;
+                target = appended;
+            } finally {
+                lock.unlock();
+            }
+            current.force();
+            synced = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Write journal is full");
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(required, 2L * buffer.capacity()));
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private List<Entry> readBatch() {
+        List<Entry> batch = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            int offset = replayOffset;
+            while (offset < writeOffset && batch.size() < replayBatchSize) {
+                int length = buffer.getInt(offset);
+                if (buffer.get(offset + 12) == PENDING) {
+                    batch.add(new Entry(offset, new JSONObject(new String(read(offset, length), UTF_8))));
+                }
+                offset += ENTRY_HEADER_SIZE + length;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    private void markDone(Entry entry) {
+        lock.lock();
+        try {
+            buffer.put(entry.offset + 12, DONE);
+            pending--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the replay offset past completed entries, and empties the journal once everything was replayed
+     */
+    private void compact() {
+        lock.lock();
+        try {
+            int offset = replayOffset;
+            while (offset < writeOffset && buffer.get(offset + 12) != PENDING) {
+                offset += ENTRY_HEADER_SIZE + buffer.getInt(offset);
+            }
+            if (offset == writeOffset) {
+                // entries of older generations are ignored, so the file can be reused from the start
+                writeHeader(generation + 1, HEADER_SIZE);
+                buffer.putInt(HEADER_SIZE, 0);
+                generation++;
+                writeOffset = HEADER_SIZE;
+            } else {
+                writeHeader(generation, offset);
+            }
+            replayOffset = buffer.getInt(12);
+            buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the end of the valid entries and counts the pending ones
+     */
+    private void recover() {
+        int offset = replayOffset;
+        int limit = buffer.capacity();
+        while (offset + ENTRY_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > limit - offset - ENTRY_HEADER_SIZE || buffer.getInt(offset + 4) != generation) {
+                break;
+            }
+            if (buffer.getInt(offset + 8) != crc(generation, read(offset, length))) {
+                break;
+            }
+            if (buffer.get(offset + 12) == PENDING) {
+                pending++;
+            }
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        writeOffset = offset;
+        if (offset + 4 <= limit) {
+            buffer.putInt(offset, 0);
+        }
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + ENTRY_HEADER_SIZE);
+        view.get(payload);
+        return payload;
+    }
+
+    private void writeHeader(int generation, int replayOffset) {
+        buffer.putInt(8, generation);
+        buffer.putInt(12, replayOffset);
+    }
+
+    private static int crc(int generation, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(generation >>> 24);
+        crc.update(generation >>> 16);
+        crc.update(generation >>> 8);
+        crc.update(generation);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static final class Entry {
+        Entry(int offset, JSONObject operation) {
+            this.offset = offset;
+            this.operation = operation;
+            String entity = operation.getString("entity");
+            if (operation.has("id")) {
+                key = key(InsightlyEntity.valueOf(entity), operation.getLong("id"));
+            } else {
+                long id = operation.getJSONObject("record").optLong(InsightlyEntity.valueOf(entity).getIdField(), 0);
+                // new records are independent of each other
+                key = id > 0 ? key(InsightlyEntity.valueOf(entity), id) : NEW_PREFIX + offset;
+            }
+        }
+
+        boolean isNew() {
+            return key.startsWith(NEW_PREFIX);
+        }
+
+        final int offset;
+        final JSONObject operation;
+        final String key;
+        volatile String rejection;
+    }
+
+    // header: magic, generation, replay offset
+    private static final long MAGIC = 0x494e534a524e4c31L;
+    private static final int HEADER_SIZE = 16;
+    // entry: payload length, generation, CRC of generation and payload, state, payload
+    private static final int ENTRY_HEADER_SIZE = 13;
+    private static final int RECORD_LOCKS = 64;
+    private static final byte PENDING = 0;
+    private static final byte DONE = 1;
+    private static final String WRITE = "write";
+    private static final String DELETE = "delete";
+    private static final String NEW_PREFIX = "new:";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Insightly insightly;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final ReentrantLock replayLock = new ReentrantLock();
+    // striped locks keeping the operations on one record in order
+    private final ReentrantLock[] recordLocks = newRecordLocks();
+    private MappedByteBuffer buffer;
+    private int generation;
+    private int replayOffset;
+    private int writeOffset;
+    private int pending;
+    private long appended;
+    private long synced;
+    private int replayBatchSize = DEFAULT_REPLAY_BATCH_SIZE;
+}
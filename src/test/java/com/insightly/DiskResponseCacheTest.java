@@ -0,0 +1,110 @@
+package com.insightly;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class DiskResponseCacheTest extends TestCase {
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("insightly", ".cache").toPath();
+        Files.delete(file);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public void testServesCachedResponseAfterReopen() throws Exception {
+        CountingChain chain = new CountingChain();
+        DiskResponseCache cache = open();
+        assertEquals("/v2.1/Users/1", cache.intercept(get("/v2.1/Users/1"), chain));
+        cache.close();
+
+        cache = open();
+        assertEquals("/v2.1/Users/1", cache.intercept(get("/v2.1/Users/1"), chain));
+        assertEquals(1, chain.calls);
+        assertEquals(1, cache.getHitCount());
+        cache.close();
+    }
+
+    public void testInvalidatesFullCache() throws Exception {
+        CountingChain chain = new CountingChain();
+        DiskResponseCache cache = open();
+        // fill the file until it has to be compacted
+        int id = 0;
+        while (cache.size() == id) {
+            id++;
+            cache.intercept(get("/v2.1/Users/" + id), chain);
+        }
+        assertTrue(cache.size() > 500);
+
+        cache.intercept(request("/v2.1/Users", "PUT"), chain);
+        assertEquals(0, cache.size());
+
+        int calls = chain.calls;
+        cache.intercept(get("/v2.1/Users/1"), chain);
+        assertEquals(calls + 1, chain.calls);
+        cache.close();
+
+        cache = open();
+        assertEquals(1, cache.size());
+        cache.close();
+    }
+
+    public void testRejectsFileInUse() throws Exception {
+        DiskResponseCache cache = open();
+        try {
+            open();
+            fail("opened a cache file in use");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("already open"));
+        }
+        cache.close();
+        open().close();
+    }
+
+    private DiskResponseCache open() throws IOException {
+        return DiskResponseCache.open(file, 1024 * 1024).cache("/v2.1/Users", 1, TimeUnit.HOURS);
+    }
+
+    private static InsightlyRequest get(String path) {
+        return request(path, "GET");
+    }
+
+    private static InsightlyRequest request(String path, String method) {
+        return new InsightlyRequest("http://localhost", "key", path, method);
+    }
+
+    /**
+     * Answers every request with its path, padded to about 1 KB
+     */
+    private static final class CountingChain implements InsightlyInterceptor.Chain {
+        @Override
+        public String proceed(InsightlyRequest request) {
+            calls++;
+            String path = request.getUrl().substring("http://localhost".length());
+            if (!"GET".equals(request.getMethod())) {
+                return "{}";
+            }
+            return path.equals("/v2.1/Users/1") ? path : path + new String(PADDING);
+        }
+
+        int calls;
+    }
+
+    private static final char[] PADDING = new char[1000];
+
+    static {
+        Arrays.fill(PADDING, ' ');
+    }
+}
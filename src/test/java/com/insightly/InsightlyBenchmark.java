@@ -0,0 +1,125 @@
+package com.insightly;
+
+import com.mashape.unirest.http.Unirest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Compares the throughput of {@link InsightlyExecutor} modes against a local stub server.
+ * </p>
+ * <p>
+ * <p>
+ * The stub answers {@code GET /v2.1/Contacts/<id>} after a fixed delay, standing in for API latency,
+ * so throughput is bound by how many calls can wait concurrently. Run it with:
+ * </p>
+ * <p>
+ * {@code
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass="com.insightly.InsightlyBenchmark" -Dexec.args="<calls> <platform-threads> <latency-ms>"
+ * }
+ * <p>
+ * <p>
+ * The defaults are 2000 concurrent calls, a pool of 200 platform threads and 250 ms latency.
+ * The virtual thread run is skipped on JVMs older than Java 21.
+ * </p>
+ */
+public class InsightlyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int platformThreads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 250;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), calls);
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/v2.1/Contacts/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                String path = exchange.getRequestURI().getPath();
+                JSONObject contact = new JSONObject();
+                contact.put("CONTACT_ID", Long.parseLong(path.substring(path.lastIndexOf('/') + 1)));
+                contact.put("FIRST_NAME", "Testy");
+                byte[] body = contact.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        // the default Unirest pool allows 20 connections per route, far below the tested concurrency
+        Unirest.setConcurrency(calls, calls);
+        Insightly insightly = new Insightly("benchmark", "http://127.0.0.1:" + server.getAddress().getPort());
+
+        try {
+            System.out.println("Benchmarking " + calls + " concurrent calls, " + latencyMillis + " ms server latency");
+            run(insightly, InsightlyExecutor.Mode.PLATFORM_THREADS, platformThreads, calls, "platform threads (" + platformThreads + ")");
+            if (InsightlyExecutor.isVirtualThreadSupported()) {
+                run(insightly, InsightlyExecutor.Mode.VIRTUAL_THREADS, 0, calls, "virtual threads");
+            } else {
+                System.out.println("virtual threads: not supported by this JVM (requires Java 21+)");
+            }
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+            Unirest.shutdown();
+        }
+    }
+
+    private static void run(Insightly insightly, InsightlyExecutor.Mode mode, int platformThreads,
+                            int calls, String label) throws Exception {
+        // warm up connections and JIT
+        execute(InsightlyExecutor.create(insightly, mode, Math.max(1, platformThreads)), Math.min(calls, 200));
+
+        long start = System.nanoTime();
+        int failures = execute(InsightlyExecutor.create(insightly, mode, platformThreads), calls);
+        long elapsed = System.nanoTime() - start;
+
+        double perSecond = calls / (elapsed / 1e9);
+        System.out.println(String.format("%s: %d calls in %d ms, %.0f calls/s, %d failed",
+                label, calls, TimeUnit.NANOSECONDS.toMillis(elapsed), perSecond, failures));
+    }
+
+    private static int execute(InsightlyExecutor executor, int calls) throws InterruptedException {
+        List<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>(calls);
+        for (int i = 0; i < calls; i++) {
+            final long id = i + 1;
+            futures.add(executor.submit(new InsightlyCall<JSONObject>() {
+                @Override
+                public JSONObject call(Insightly insightly) throws InsightlyException {
+                    return insightly.getContact(id);
+                }
+            }));
+        }
+        int failures = 0;
+        for (Future<JSONObject> future : futures) {
+            try {
+                future.get();
+            } catch (Exception ex) {
+                failures++;
+            }
+        }
+        executor.shutdown(1, TimeUnit.MINUTES);
+        return failures;
+    }
+}
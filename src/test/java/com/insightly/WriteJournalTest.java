@@ -0,0 +1,218 @@
+package com.insightly;
+
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class WriteJournalTest extends TestCase {
+
+    private Path file;
+    private StubServer server;
+    private Insightly insightly;
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("insightly", ".journal").toPath();
+        Files.delete(file);
+        server = new StubServer();
+        insightly = new Insightly("key", "http://localhost").addInterceptor(server);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        executor.shutdownNow();
+        Files.deleteIfExists(file);
+    }
+
+    public void testReplaysOperationsOnARecordInOrder() throws Exception {
+        WriteJournal journal = WriteJournal.open(insightly, file);
+        server.reachable = false;
+        assertNull(journal.write(InsightlyEntity.CONTACTS, contact(1, "a")));
+        journal.write(InsightlyEntity.CONTACTS, contact(2, "x"));
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "b"));
+        assertFalse(journal.delete(InsightlyEntity.CONTACTS, 2));
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "c"));
+        assertEquals(5, journal.getPendingCount());
+
+        server.reachable = true;
+        ReplayResult result = journal.replayBatchSize(2).replay(executor);
+        assertEquals(5, result.getReplayedCount());
+        assertEquals(0, result.getPendingCount());
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(Arrays.asList("a", "b", "c"), server.names(1));
+        List<String> record2 = server.sent("PUT", "\"CONTACT_ID\":2");
+        assertEquals(1, record2.size());
+        assertTrue(server.requests.indexOf(record2.get(0)) < server.requests.indexOf("DELETE /v2.1/Contacts/2"));
+        journal.close();
+    }
+
+    public void testKeepsOperationsPendingWhileServerIsUnreachable() throws Exception {
+        WriteJournal journal = WriteJournal.open(insightly, file);
+        server.reachable = false;
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "a"));
+        journal.write(InsightlyEntity.CONTACTS, contact(0, "new"));
+
+        ReplayResult result = journal.replay(executor);
+        assertEquals(0, result.getReplayedCount());
+        assertEquals(2, result.getPendingCount());
+        assertTrue(result.getRejected().isEmpty());
+
+        // while operations are journaled, later ones queue up behind them even if the server is back
+        server.reachable = true;
+        assertNull(journal.write(InsightlyEntity.CONTACTS, contact(1, "b")));
+        assertTrue(server.requests.isEmpty());
+        journal.close();
+
+        journal = WriteJournal.open(insightly, file);
+        assertEquals(3, journal.getPendingCount());
+        assertEquals(3, journal.replay(executor).getReplayedCount());
+        assertEquals(Arrays.asList("a", "b"), server.names(1));
+        journal.close();
+    }
+
+    public void testDiscardsTornEntryOnReopen() throws Exception {
+        WriteJournal journal = WriteJournal.open(insightly, file);
+        server.reachable = false;
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "a"));
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "b"));
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "c"));
+        journal.close();
+
+        // flip a payload byte of the last entry, as if the crash hit while it was written
+        tearEntry(2);
+        journal = WriteJournal.open(insightly, file);
+        assertEquals(2, journal.getPendingCount());
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "d"));
+        journal.close();
+
+        journal = WriteJournal.open(insightly, file);
+        assertEquals(3, journal.getPendingCount());
+        server.reachable = true;
+        journal.replay(executor);
+        assertEquals(Arrays.asList("a", "b", "d"), server.names(1));
+        journal.close();
+    }
+
+    public void testReopensAfterGenerationReset() throws Exception {
+        WriteJournal journal = WriteJournal.open(insightly, file);
+        server.reachable = false;
+        journal.write(InsightlyEntity.CONTACTS, contact(1, "a"));
+        journal.write(InsightlyEntity.CONTACTS, contact(2, "b"));
+        server.reachable = true;
+        assertEquals(2, journal.replay(executor).getReplayedCount());
+        journal.close();
+
+        // the entries of the replayed generation are still in the file, but must not come back
+        journal = WriteJournal.open(insightly, file);
+        assertEquals(0, journal.getPendingCount());
+        server.reachable = false;
+        journal.write(InsightlyEntity.CONTACTS, contact(3, "c"));
+        journal.close();
+
+        journal = WriteJournal.open(insightly, file);
+        assertEquals(1, journal.getPendingCount());
+        server.reachable = true;
+        server.requests.clear();
+        assertEquals(1, journal.replay(executor).getReplayedCount());
+        assertEquals(Collections.singletonList("c"), server.names(3));
+        assertEquals(1, server.requests.size());
+        journal.close();
+    }
+
+    public void testRejectsFileInUse() throws Exception {
+        WriteJournal journal = WriteJournal.open(insightly, file);
+        try {
+            WriteJournal.open(insightly, file);
+            fail("opened a journal in use");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("already open"));
+        }
+        journal.close();
+        WriteJournal.open(insightly, file).close();
+    }
+
+    private void tearEntry(int index) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            long offset = 16;
+            for (int i = 0; i < index; i++) {
+                length.clear();
+                channel.read(length, offset);
+                offset += 13 + length.getInt(0);
+            }
+            ByteBuffer payload = ByteBuffer.allocate(1);
+            channel.read(payload, offset + 13);
+            payload.put(0, (byte) (payload.get(0) ^ 0xff));
+            payload.rewind();
+            channel.write(payload, offset + 13);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static JSONObject contact(long id, String name) {
+        JSONObject contact = new JSONObject().put("FIRST_NAME", name);
+        if (id > 0) {
+            contact.put("CONTACT_ID", id);
+        }
+        return contact;
+    }
+
+    /**
+     * Records the requests it answers, or fails them as a connection refused while unreachable
+     */
+    private static final class StubServer implements InsightlyInterceptor {
+        @Override
+        public String intercept(InsightlyRequest request, Chain chain) throws InsightlyException {
+            if (!reachable) {
+                throw new InsightlyException("Cannot connect", new ConnectException("Connection refused"));
+            }
+            String path = request.getUrl().substring("http://localhost".length());
+            requests.add(request.getMethod() + " " + path + (request.getBody() != null ? " " + request.getBody() : ""));
+            return "{}";
+        }
+
+        List<String> sent(String method, String text) {
+            List<String> sent = new ArrayList<String>();
+            synchronized (requests) {
+                for (String request : requests) {
+                    if (request.contains(method) && request.contains(text)) {
+                        sent.add(request);
+                    }
+                }
+            }
+            return sent;
+        }
+
+        /**
+         * First names written to the contact, in the order they were sent
+         */
+        List<String> names(long id) {
+            List<String> names = new ArrayList<String>();
+            for (String request : sent("PUT", "\"CONTACT_ID\":" + id)) {
+                names.add(new JSONObject(request.substring(request.indexOf('{'))).getString("FIRST_NAME"));
+            }
+            return names;
+        }
+
+        volatile boolean reachable = true;
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    }
+}